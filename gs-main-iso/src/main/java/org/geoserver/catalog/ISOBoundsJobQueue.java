@@ -0,0 +1,205 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.Utilities;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Background queue computing the SRS and the bounds of feature types published with placeholder
+ * bounds by {@link ISOCatalogBuilder#publishFeatureTypes(List)}.
+ * <p>
+ * Each job goes through its feature types in order, performs the extensive SRS lookup when the
+ * quick one did not find a code, and replaces the placeholder bounds with the ones reported by
+ * the store, or estimated from a sample of the features when the store cannot provide them
+ * cheaply. Feature types removed, or whose bounds were edited in the meantime, are left alone.
+ * Jobs run on a small shared pool, and report their progress.
+ * </p>
+ */
+public class ISOBoundsJobQueue {
+
+    static final Logger LOGGER = Logging.getLogger(ISOBoundsJobQueue.class);
+
+    /**
+     * Number of jobs running at the same time
+     */
+    static final int THREADS = Math.max(1, Integer.getInteger("org.geoserver.iso.boundsThreads", 2));
+
+    static ExecutorService executor;
+
+    static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Bounds computation " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Schedules the computation of the SRS and bounds of the specified feature types
+     *
+     * @param catalog the catalog containing the feature types
+     * @param placeholders the placeholder native bounds of each feature type, by id
+     */
+    public static Job submit(Catalog catalog, Map<String, ReferencedEnvelope> placeholders) {
+        Job job = new Job(catalog, placeholders);
+        job.future = executor().submit(job);
+        return job;
+    }
+
+    /**
+     * A bounds computation job and its progress
+     */
+    public static class Job implements Runnable {
+        final Catalog catalog;
+
+        final Map<String, ReferencedEnvelope> placeholders;
+
+        final List<String> ids;
+
+        final AtomicInteger completed = new AtomicInteger();
+
+        final Map<String, Throwable> errors = new ConcurrentHashMap<String, Throwable>();
+
+        volatile boolean done;
+
+        Future<?> future;
+
+        Job(Catalog catalog, Map<String, ReferencedEnvelope> placeholders) {
+            this.catalog = catalog;
+            this.placeholders = placeholders;
+            this.ids = new ArrayList<String>(placeholders.keySet());
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                for (String id : ids) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    try {
+                        setup(id);
+                    } catch (Throwable t) {
+                        errors.put(id, t);
+                        LOGGER.log(Level.WARNING, "Failed to compute the bounds of feature type "
+                                + id, t);
+                    }
+                    completed.incrementAndGet();
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Bounds computed for " + completed.get() + " of " + ids.size()
+                                + " feature types");
+                    }
+                }
+            } finally {
+                done = true;
+                LOGGER.info("Bounds computed for " + completed.get() + " feature types in "
+                        + (System.currentTimeMillis() - start) + " ms, " + errors.size()
+                        + " failed");
+            }
+        }
+
+        void setup(String id) throws Exception {
+            FeatureTypeInfo ft = catalog.getFeatureType(id);
+            if (ft == null) {
+                // removed in the meantime
+                return;
+            }
+            ISOCatalogBuilder builder = new ISOCatalogBuilder(catalog);
+            builder.setStore(ft.getStore());
+            FeatureSource source = ft.getFeatureSource(null, null);
+
+            if (ft.getSRS() == null) {
+                builder.lookupSRS(ft, source, true);
+                builder.setupProjectionPolicy(ft);
+            }
+
+            // don't override bounds edited while waiting
+            if (Utilities.equals(ft.getNativeBoundingBox(), placeholders.get(id))) {
+                ReferencedEnvelope bounds;
+                if (ISOCatalogBuilder.is3D(ft.getNativeCRS())) {
+                    // also sets up the Z range used by the vertical extents
+                    ReferencedEnvelope placeholder = ft.getNativeBoundingBox();
+                    builder.setupBounds3D(ft, source, ISOCatalogBuilder.BOUNDS_SAMPLE_SIZE);
+                    bounds = ft.getNativeBoundingBox();
+                    if (bounds == null) {
+                        ft.setNativeBoundingBox(placeholder);
+                    }
+                } else {
+                    bounds = builder.estimateNativeBounds(ft, source,
+                            ISOCatalogBuilder.BOUNDS_SAMPLE_SIZE);
+                    if (bounds != null) {
+                        ft.setNativeBoundingBox(bounds);
+                    }
+                }
+                if (bounds != null) {
+                    ft.setLatLonBoundingBox(builder.getLatLonBounds(bounds, ft.getCRS()));
+                }
+            }
+            catalog.save(ft);
+        }
+
+        /**
+         * The number of feature types in the job
+         */
+        public int getTotal() {
+            return ids.size();
+        }
+
+        /**
+         * The number of feature types processed so far, including the failed ones
+         */
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * The progress, between 0 and 1
+         */
+        public float getProgress() {
+            return ids.isEmpty() ? 1 : completed.get() / (float) ids.size();
+        }
+
+        public boolean isDone() {
+            return done || (future != null && future.isCancelled());
+        }
+
+        /**
+         * The failures so far, by feature type id
+         */
+        public Map<String, Throwable> getErrors() {
+            return Collections.unmodifiableMap(errors);
+        }
+
+        public void cancel() {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ package org.geoserver.catalog;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -18,6 +19,7 @@ import javax.measure.unit.Unit;
 import javax.media.jai.PlanarImage;
 
 import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.catalog.impl.ISOCatalogImpl;
 import org.geoserver.catalog.impl.ModificationProxy;
 import org.geoserver.catalog.impl.ResourceInfoImpl;
 import org.geoserver.catalog.impl.StoreInfoImpl;
@@ -33,14 +35,18 @@ import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.data.DataAccess;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
 import org.geotools.data.ows.CRSEnvelope;
 import org.geotools.data.ows.Layer;
 import org.geotools.factory.GeoTools;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.FeatureTypes;
 import org.geotools.gce.imagemosaic.ImageMosaicFormat;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
@@ -50,10 +56,12 @@ import org.geotools.util.Version;
 import org.geotools.util.logging.Logging;
 import org.opengis.coverage.grid.Format;
 import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.feature.GeometryAttribute;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.feature.type.Name;
 import org.opengis.feature.type.PropertyDescriptor;
+import org.opengis.geometry.BoundingBox;
 import org.opengis.geometry.Envelope;
 import org.opengis.geometry.aggregate.MultiCurve;
 import org.opengis.geometry.aggregate.MultiPoint;
@@ -69,6 +77,8 @@ import org.opengis.referencing.crs.GeographicCRS;
 import org.opengis.referencing.datum.PixelInCell;
 import org.opengis.referencing.operation.MathTransform;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 /**
  * Builder class which provides convenience methods for interacting with the catalog.
  * <p>
@@ -86,6 +96,19 @@ public class ISOCatalogBuilder {
     /** Default SRS; will be set on the provided feature type by lookupSRS methods if none was found */
     public static final String DEFAULT_SRS = "EPSG:404000";
 
+    /** Metadata key of the minimum native Z of a feature type with a 3D CRS, a Double */
+    public static final String MIN_Z = "minZ";
+
+    /** Metadata key of the maximum native Z of a feature type with a 3D CRS, a Double */
+    public static final String MAX_Z = "maxZ";
+
+    /**
+     * Number of features read to estimate the bounds, or the Z range, when the store cannot
+     * compute them
+     */
+    static final int BOUNDS_SAMPLE_SIZE = Integer.getInteger("org.geoserver.iso.boundsSampleSize",
+            10000);
+
     /**
      * the catalog
      */
@@ -461,14 +484,120 @@ public class ISOCatalogBuilder {
     void doSetupBounds(ResourceInfo rinfo, Object data) throws IOException {
         // setup the native bbox if needed
         if (rinfo.getNativeBoundingBox() == null) {
-            ReferencedEnvelope bounds = getNativeBounds(rinfo, data);
-            rinfo.setNativeBoundingBox(bounds);
+            if (rinfo instanceof FeatureTypeInfo && is3D(rinfo.getNativeCRS())) {
+                setupBounds3D((FeatureTypeInfo) rinfo, (FeatureSource) (data instanceof FeatureSource ? data : null),
+                        BOUNDS_SAMPLE_SIZE);
+            } else {
+                ReferencedEnvelope bounds = getNativeBounds(rinfo, data);
+                rinfo.setNativeBoundingBox(bounds);
+            }
         }
 
         // setup the geographic bbox if missing and we have enough info
         rinfo.setLatLonBoundingBox(getLatLonBounds(rinfo.getNativeBoundingBox(), rinfo.getCRS()));
     }
 
+    /**
+     * Computes the native bounds of a feature type with a 3D CRS along with its Z range, which is
+     * stored in the metadata under {@link #MIN_Z} and {@link #MAX_Z}.
+     * <p>
+     * If the feature source bounds, which might come from a spatial index, are already 3D no data
+     * is read. Otherwise, as for the 2D bounds, the missing information is estimated from the
+     * first <code>sampleSize</code> features rather than read from the whole data set, so the Z
+     * range of a store returning 2D bounds is only an estimate.
+     * </p>
+     * 
+     * @param ftinfo
+     * @param featureSource the feature type source, looked up if null
+     * @param sampleSize the maximum number of features read for the estimate
+     * @throws IOException
+     */
+    public void setupBounds3D(FeatureTypeInfo ftinfo, FeatureSource featureSource, int sampleSize)
+            throws IOException {
+        if (featureSource == null) {
+            featureSource = ftinfo.getFeatureSource(null, null);
+        }
+        ReferencedEnvelope bounds = featureSource.getBounds();
+        Double minZ = null;
+        Double maxZ = null;
+        if (bounds instanceof ReferencedEnvelope3D && !bounds.isNull()) {
+            minZ = ((ReferencedEnvelope3D) bounds).getMinZ();
+            maxZ = ((ReferencedEnvelope3D) bounds).getMaxZ();
+        } else {
+            double[] scanned = scanBounds(featureSource, sampleSize);
+            if (scanned != null) {
+                if (bounds == null) {
+                    bounds = new ReferencedEnvelope(scanned[0], scanned[1], scanned[2],
+                            scanned[3], null);
+                }
+                if (scanned[4] <= scanned[5]) {
+                    minZ = scanned[4];
+                    maxZ = scanned[5];
+                }
+            }
+        }
+
+        ftinfo.setNativeBoundingBox(reprojectToDeclared(ftinfo, fixFeatureBounds(ftinfo, bounds)));
+        if (minZ != null) {
+            ftinfo.getMetadata().put(MIN_Z, minZ);
+            ftinfo.getMetadata().put(MAX_Z, maxZ);
+        } else {
+            ftinfo.getMetadata().remove(MIN_Z);
+            ftinfo.getMetadata().remove(MAX_Z);
+        }
+    }
+
+    /*
+     * Reads the default geometries of the first sampleSize features, returning minx, maxx, miny,
+     * maxy, minz, maxz, or null if there are no geometries. The Z range is empty if no geometry
+     * has Z
+     */
+    double[] scanBounds(FeatureSource featureSource, int sampleSize) throws IOException {
+        GeometryDescriptor gd = featureSource.getSchema().getGeometryDescriptor();
+        if (gd == null) {
+            return null;
+        }
+        Query query = new Query(featureSource.getSchema().getName().getLocalPart());
+        query.setPropertyNames(new String[] { gd.getLocalName() });
+        query.setMaxFeatures(sampleSize);
+
+        double[] b = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
+        FeatureIterator fi = featureSource.getFeatures(query).features();
+        try {
+            while (fi.hasNext()) {
+                GeometryAttribute ga = fi.next().getDefaultGeometryProperty();
+                Object g = ga == null ? null : ga.getValue();
+                if (g instanceof org.opengis.geometry.Geometry) {
+                    Envelope e = ((org.opengis.geometry.Geometry) g).getEnvelope();
+                    for (int i = 0; i < Math.min(3, e.getDimension()); i++) {
+                        b[i * 2] = Math.min(b[i * 2], e.getMinimum(i));
+                        b[i * 2 + 1] = Math.max(b[i * 2 + 1], e.getMaximum(i));
+                    }
+                } else if (g instanceof com.vividsolutions.jts.geom.Geometry) {
+                    for (Coordinate c : ((com.vividsolutions.jts.geom.Geometry) g).getCoordinates()) {
+                        b[0] = Math.min(b[0], c.x);
+                        b[1] = Math.max(b[1], c.x);
+                        b[2] = Math.min(b[2], c.y);
+                        b[3] = Math.max(b[3], c.y);
+                        if (!Double.isNaN(c.z)) {
+                            b[4] = Math.min(b[4], c.z);
+                            b[5] = Math.max(b[5], c.z);
+                        }
+                    }
+                }
+            }
+        } finally {
+            fi.close();
+        }
+        return b[0] <= b[1] ? b : null;
+    }
+
+    static boolean is3D(CoordinateReferenceSystem crs) {
+        return crs != null && crs.getCoordinateSystem().getDimension() >= 3;
+    }
+
     /**
      * Fills in metadata on the {@link FeatureTypeInfo} from an underlying feature source.
      */
@@ -564,23 +693,7 @@ public class ISOCatalogBuilder {
                 bounds = ftinfo.getFeatureSource(null, null).getBounds();
             }
 
-            // fix the native bounds if necessary, some datastores do
-            // not build a proper referenced envelope
-            CoordinateReferenceSystem crs = ftinfo.getNativeCRS();
-            if (bounds != null && bounds.getCoordinateReferenceSystem() == null && crs != null) {
-                bounds = ReferencedEnvelope.create(bounds, crs);
-            }
-
-            if (bounds != null) {
-                // expansion factor if the bounds are empty or one dimensional
-                double expandBy = 1; // 1 meter
-                if (bounds.getCoordinateReferenceSystem() instanceof GeographicCRS) {
-                    expandBy = 0.0001;
-                }
-                if (bounds.getWidth() == 0 || bounds.getHeight() == 0) {
-                    bounds.expandBy(expandBy);
-                }
-            }
+            bounds = fixFeatureBounds(ftinfo, bounds);
 
         } else if (rinfo instanceof CoverageInfo) {
             // the coverage bounds computation path is a bit more linear, the
@@ -605,7 +718,37 @@ public class ISOCatalogBuilder {
             bounds = rebuilt.getNativeBoundingBox();
         }
 
-        // apply the bounds, taking into account the reprojection policy if need be
+        return reprojectToDeclared(rinfo, bounds);
+    }
+
+    /*
+     * Fixes the native bounds of a feature type if necessary, some datastores do not build a
+     * proper referenced envelope, and empty or one dimensional bounds are expanded
+     */
+    ReferencedEnvelope fixFeatureBounds(FeatureTypeInfo ftinfo, ReferencedEnvelope bounds) {
+        CoordinateReferenceSystem crs = ftinfo.getNativeCRS();
+        if (bounds != null && bounds.getCoordinateReferenceSystem() == null && crs != null) {
+            bounds = ReferencedEnvelope.create(bounds, crs);
+        }
+
+        if (bounds != null) {
+            // expansion factor if the bounds are empty or one dimensional
+            double expandBy = 1; // 1 meter
+            if (bounds.getCoordinateReferenceSystem() instanceof GeographicCRS) {
+                expandBy = 0.0001;
+            }
+            if (bounds.getWidth() == 0 || bounds.getHeight() == 0) {
+                bounds.expandBy(expandBy);
+            }
+        }
+        return bounds;
+    }
+
+    /*
+     * Applies the bounds, taking into account the reprojection policy if need be
+     */
+    ReferencedEnvelope reprojectToDeclared(ResourceInfo rinfo, ReferencedEnvelope bounds)
+            throws IOException {
         if (rinfo.getProjectionPolicy() == ProjectionPolicy.REPROJECT_TO_DECLARED && bounds != null) {
             try {
                 bounds = bounds.transform(rinfo.getCRS(), true);
@@ -613,10 +756,117 @@ public class ISOCatalogBuilder {
                 throw (IOException) new IOException("transform error").initCause(e);
             }
         }
-
         return bounds;
     }
 
+    /**
+     * Computes the native bounds of a feature type without scanning the whole data set: the
+     * bounds are asked to the feature source, which returns null when it cannot compute them
+     * cheaply, in that case they are estimated from the first features.
+     * 
+     * @param ftinfo
+     * @param featureSource the feature type source
+     * @param sampleSize the maximum number of features read for the estimate
+     * @return the native bounds, or null if they could not be computed
+     * @throws IOException
+     */
+    public ReferencedEnvelope estimateNativeBounds(FeatureTypeInfo ftinfo,
+            FeatureSource featureSource, int sampleSize) throws IOException {
+        ReferencedEnvelope bounds = featureSource.getBounds();
+        if (bounds == null) {
+            GeometryDescriptor gd = featureSource.getSchema().getGeometryDescriptor();
+            if (gd == null) {
+                return null;
+            }
+            Query query = new Query(featureSource.getSchema().getName().getLocalPart());
+            query.setPropertyNames(new String[] { gd.getLocalName() });
+            query.setMaxFeatures(sampleSize);
+            FeatureIterator fi = featureSource.getFeatures(query).features();
+            try {
+                while (fi.hasNext()) {
+                    BoundingBox fb = fi.next().getBounds();
+                    if (fb == null || fb.isEmpty()) {
+                        continue;
+                    }
+                    if (bounds == null) {
+                        bounds = new ReferencedEnvelope(fb);
+                    } else {
+                        bounds.include(fb);
+                    }
+                }
+            } finally {
+                fi.close();
+            }
+        }
+        return reprojectToDeclared(ftinfo, fixFeatureBounds(ftinfo, bounds));
+    }
+
+    /**
+     * Sets placeholder bounds on a resource, the envelope of its CRS area of validity if known,
+     * and the whole world otherwise, without accessing the data
+     */
+    public void setupPlaceholderBounds(ResourceInfo rinfo) {
+        ReferencedEnvelope bounds = getBoundsFromCRS(rinfo);
+        rinfo.setNativeBoundingBox(bounds);
+        ReferencedEnvelope latLon = null;
+        try {
+            latLon = getLatLonBounds(bounds, rinfo.getCRS());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not transform the placeholder bounds to lat/lon", e);
+        }
+        if (latLon == null) {
+            latLon = new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84);
+        }
+        rinfo.setLatLonBoundingBox(latLon);
+    }
+
+    /**
+     * Publishes the specified feature types of the current data store without waiting for their
+     * bounds: each feature type is built, given placeholder bounds and added to the catalog
+     * along with its layer, then the extensive SRS lookup and the bounds computation are
+     * scheduled on the {@link ISOBoundsJobQueue}.
+     * <p>
+     * Feature types that cannot be built or added are logged and skipped.
+     * </p>
+     * 
+     * @param typeNames the names of the feature types to publish
+     * @return the job computing the bounds, which can be used to track its progress
+     */
+    public ISOBoundsJobQueue.Job publishFeatureTypes(List<Name> typeNames) throws IOException {
+        if (store == null || !(store instanceof DataStoreInfo)) {
+            throw new IllegalStateException("Data store not set.");
+        }
+
+        DataAccess dataAccess = ((DataStoreInfo) store).getDataStore(null);
+        Map<String, ReferencedEnvelope> placeholders = new LinkedHashMap<String, ReferencedEnvelope>();
+        // deliver the catalog events at the end, in one go
+        ISOCatalogImpl batching = catalog instanceof ISOCatalogImpl ? (ISOCatalogImpl) catalog : null;
+        if (batching != null) {
+            batching.beginBatch();
+        }
+        boolean completed = false;
+        try {
+            for (Name typeName : typeNames) {
+                try {
+                    FeatureTypeInfo ftinfo = buildFeatureType(dataAccess.getFeatureSource(typeName));
+                    setupPlaceholderBounds(ftinfo);
+                    catalog.add(ftinfo);
+                    LayerInfo layer = buildLayer(ftinfo);
+                    catalog.add(layer);
+                    placeholders.put(ftinfo.getId(), ftinfo.getNativeBoundingBox());
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to publish feature type " + typeName, e);
+                }
+            }
+            completed = true;
+        } finally {
+            if (batching != null) {
+                batching.endBatch(!completed);
+            }
+        }
+        return ISOBoundsJobQueue.submit(catalog, placeholders);
+    }
+
     /**
      * Looks up and sets the SRS based on the feature type info native
      * {@link CoordinateReferenceSystem}
@@ -8,14 +8,25 @@ package org.geoserver.catalog;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.measure.converter.UnitConverter;
 import javax.measure.unit.NonSI;
 import javax.measure.unit.SI;
 import javax.measure.unit.Unit;
 
+import org.geoserver.catalog.impl.ModificationProxy;
 import org.geoserver.feature.retype.ISORetypingFeatureSource;
 import org.geotools.data.DataAccess;
 import org.geotools.data.DataAccessFactory;
@@ -69,6 +80,27 @@ import org.xml.sax.EntityResolver;
  */
 public class ISOResourcePool extends ResourcePool {
 	
+	/**
+	 * The assembled feature source pipelines, by feature type id
+	 */
+	Map<String, FeatureSourcePlan> featureSourcePlanCache = new ConcurrentHashMap<String, FeatureSourcePlan>();
+	
+	/**
+	 * The versioning wrapper factory method, looked up once
+	 */
+	static volatile Method versioningFactory;
+	
+	/**
+	 * The data stores being created, by store id
+	 */
+	ConcurrentMap<String, FutureTask<DataAccess>> pendingDataStores = new ConcurrentHashMap<String, FutureTask<DataAccess>>();
+	
+	/**
+	 * Counts the data store cache clears, guarded by the {@link #dataStoreCache} lock along with
+	 * the cache itself
+	 */
+	long dataStoreClears;
+	
 	@Override
     public FeatureSource<? extends FeatureType, ? extends Feature> getFeatureSource( FeatureTypeInfo info, Hints hints ) throws IOException {
         DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
@@ -90,13 +122,10 @@ public class ISOResourcePool extends ResourcePool {
         //
         // aliasing and type mapping
         //
-        final String typeName = info.getNativeName();
-        final String alias = info.getName();
-        final SimpleFeatureType nativeFeatureType = dataStore.getSchema( typeName );
-        final SimpleFeatureType renamedFeatureType = (SimpleFeatureType) getFeatureType( info, false );
-        if ( !typeName.equals( alias ) || ISODataUtilities.compare(nativeFeatureType,renamedFeatureType) != 0 ) {
+        FeatureSourcePlan plan = getFeatureSourcePlan(info, dataStore);
+        if ( plan.retype ) {
             // rename and retype as necessary
-            fs = ISORetypingFeatureSource.getRetypingSource(dataStore.getFeatureSource(typeName), renamedFeatureType);
+            fs = ISORetypingFeatureSource.getRetypingSource(dataStore.getFeatureSource(info.getNativeName()), plan.renamedFeatureType);
         } else {
             //normal case
             fs = dataStore.getFeatureSource(info.getQualifiedName());   
@@ -121,31 +150,15 @@ public class ISOResourcePool extends ResourcePool {
             ppolicy = ProjectionPolicy.NONE;
         }
         
-        List<AttributeTypeInfo> attributes = info.attributes();
-        if (attributes == null || attributes.isEmpty()) { 
+        if (!plan.hasAttributes) { 
             return fs;
         } 
         else {
-            CoordinateReferenceSystem resultCRS = null;
-            GeometryDescriptor gd = fs.getSchema().getGeometryDescriptor();
-            CoordinateReferenceSystem nativeCRS = gd != null ? gd.getCoordinateReferenceSystem() : null;
-            
-            if (ppolicy == ProjectionPolicy.NONE && nativeCRS != null) {
-                resultCRS = nativeCRS;
-            } else {
-                resultCRS = getCRS(info.getSRS());
-            }
-
-            // make sure we create the appropriate schema, with the right crs
-            // we checked above we are using DataStore/SimpleFeature/SimpleFeatureType (DSSFSFT)
-            SimpleFeatureType schema = (SimpleFeatureType) getFeatureType(info);
-            try {
-                if (!CRS.equalsIgnoreMetadata(resultCRS, schema.getCoordinateReferenceSystem()))
-                    schema = ISOFeatureTypes.transform(schema, resultCRS);
-            } catch (Exception e) {
-                throw new DataSourceException(
-                        "Problem forcing CRS onto feature type", e);
+            List<Join> joins = null;
+            if (hints != null && hints.containsKey(JOINS)) {
+                joins = (List<Join>) hints.get(JOINS);
             }
+            FeatureSourceTarget target = plan.getTarget(this, info, fs, ppolicy, joins);
 
             //
             // versioning
@@ -155,10 +168,14 @@ public class ISOResourcePool extends ResourcePool {
                 if (VERSIONING_FS != null && GS_VERSIONING_FS != null && VERSIONING_FS.isAssignableFrom( fs.getClass() ) ) {
                     //class implements versioning, reflectively create the versioning wrapper
                     try {
-                    Method m = GS_VERSIONING_FS.getMethod( "create", VERSIONING_FS, 
-                        SimpleFeatureType.class, Filter.class, CoordinateReferenceSystem.class, int.class );
-                        return (FeatureSource) m.invoke(null, fs, schema, info.filter(),
-                        resultCRS, info.getProjectionPolicy().getCode());
+                        Method m = versioningFactory;
+                        if (m == null) {
+                            m = GS_VERSIONING_FS.getMethod( "create", VERSIONING_FS, 
+                                SimpleFeatureType.class, Filter.class, CoordinateReferenceSystem.class, int.class );
+                            versioningFactory = m;
+                        }
+                        return (FeatureSource) m.invoke(null, fs, target.schema, info.filter(),
+                        target.resultCRS, info.getProjectionPolicy().getCode());
                     }
                     catch( Exception e ) {
                         throw new DataSourceException(
@@ -169,26 +186,174 @@ public class ISOResourcePool extends ResourcePool {
                 //fall through
             } 
 
-            //joining, check for join hint which requires us to create a shcema with some additional
-            // attributes
-            if (hints != null && hints.containsKey(JOINS)) {
-                List<Join> joins = (List<Join>) hints.get(JOINS);
-                ISOSimpleFeatureTypeBuilder typeBuilder = new ISOSimpleFeatureTypeBuilder();
-                typeBuilder.init(schema);
-                
-                for (Join j : joins) {
-                    String attName = j.getAlias() != null ? j.getAlias() : j.getTypeName();
-                    typeBuilder.add(attName, SimpleFeature.class);
-                }
-                schema = typeBuilder.buildFeatureType();
-            }
-
             //return a normal 
-            return GeoServerFeatureLocking.create(fs, schema, info.filter(), resultCRS, info
-                    .getProjectionPolicy().getCode(), getTolerance(info), info.getMetadata());
+            return GeoServerFeatureLocking.create(fs, target.joinedSchema, info.filter(), target.resultCRS, info
+                    .getProjectionPolicy().getCode(), plan.tolerance, info.getMetadata());
         }
     }
 	
+	/**
+	 * Returns the cached feature source pipeline of a feature type, building it if missing
+	 */
+	FeatureSourcePlan getFeatureSourcePlan(FeatureTypeInfo info, DataStore dataStore) throws IOException {
+	    // no caching for un-saved or modified feature types, they won't be cleared
+	    String id = isPlanCacheable(info) ? info.getId() : null;
+	    FeatureSourcePlan plan = id != null ? featureSourcePlanCache.get(id) : null;
+	    if (plan == null) {
+	        final String typeName = info.getNativeName();
+	        final String alias = info.getName();
+	        final SimpleFeatureType nativeFeatureType = dataStore.getSchema( typeName );
+	        final SimpleFeatureType renamedFeatureType = (SimpleFeatureType) getFeatureType( info, false );
+	        boolean retype = !typeName.equals( alias ) || ISODataUtilities.compare(nativeFeatureType,renamedFeatureType) != 0;
+	        List<AttributeTypeInfo> attributes = info.attributes();
+	        boolean hasAttributes = attributes != null && !attributes.isEmpty();
+	        plan = new FeatureSourcePlan(retype, renamedFeatureType, hasAttributes, 
+	                hasAttributes ? getTolerance(info) : null);
+	        
+	        if (id != null) {
+	            featureSourcePlanCache.put(id, plan);
+	        }
+	    }
+	    return plan;
+	}
+	
+	boolean isPlanCacheable(FeatureTypeInfo info) {
+	    if (info.getId() == null) {
+	        return false;
+	    }
+	    if (Proxy.isProxyClass(info.getClass())) {
+	        ModificationProxy h = ModificationProxy.handler(info);
+	        if (h != null && h.isDirty()) {
+	            return false;
+	        }
+	    }
+	    return true;
+	}
+	
+	@Override
+	public void clear(FeatureTypeInfo info) {
+	    super.clear(info);
+	    if (info.getId() != null) {
+	        featureSourcePlanCache.remove(info.getId());
+	    }
+	}
+	
+	@Override
+	public void clear(DataStoreInfo info) {
+	    synchronized (dataStoreCache) {
+	        // drops the stores being created, they might use the old configuration
+	        dataStoreClears++;
+	        super.clear(info);
+	    }
+	    // the native schemas might have changed along with the store
+	    featureSourcePlanCache.clear();
+	}
+	
+	@Override
+	public void dispose() {
+	    synchronized (dataStoreCache) {
+	        dataStoreClears++;
+	    }
+	    super.dispose();
+	    featureSourcePlanCache.clear();
+	}
+	
+	/**
+	 * The part of a feature source assembly that only depends on the configuration: the retyping
+	 * decision, and the target schemas by projection policy and joins
+	 */
+	static class FeatureSourcePlan {
+	    final boolean retype;
+	    
+	    final SimpleFeatureType renamedFeatureType;
+	    
+	    final boolean hasAttributes;
+	    
+	    final Double tolerance;
+	    
+	    final ConcurrentMap<String, FeatureSourceTarget> targets = new ConcurrentHashMap<String, FeatureSourceTarget>();
+	    
+	    FeatureSourcePlan(boolean retype, SimpleFeatureType renamedFeatureType, boolean hasAttributes, Double tolerance) {
+	        this.retype = retype;
+	        this.renamedFeatureType = renamedFeatureType;
+	        this.hasAttributes = hasAttributes;
+	        this.tolerance = tolerance;
+	    }
+	    
+	    FeatureSourceTarget getTarget(ISOResourcePool pool, FeatureTypeInfo info, SimpleFeatureSource fs,
+	            ProjectionPolicy ppolicy, List<Join> joins) throws IOException {
+	        StringBuilder key = new StringBuilder(ppolicy.name());
+	        if (joins != null) {
+	            for (Join j : joins) {
+	                key.append('|').append(j.getAlias() != null ? j.getAlias() : j.getTypeName());
+	            }
+	        }
+	        FeatureSourceTarget target = targets.get(key.toString());
+	        if (target == null) {
+	            target = pool.buildTarget(info, fs, ppolicy, joins);
+	            targets.put(key.toString(), target);
+	        }
+	        return target;
+	    }
+	}
+	
+	/**
+	 * The crs and schemas a feature source is wrapped with
+	 */
+	static class FeatureSourceTarget {
+	    final CoordinateReferenceSystem resultCRS;
+	    
+	    final SimpleFeatureType schema;
+	    
+	    final SimpleFeatureType joinedSchema;
+	    
+	    FeatureSourceTarget(CoordinateReferenceSystem resultCRS, SimpleFeatureType schema, SimpleFeatureType joinedSchema) {
+	        this.resultCRS = resultCRS;
+	        this.schema = schema;
+	        this.joinedSchema = joinedSchema;
+	    }
+	}
+	
+	FeatureSourceTarget buildTarget(FeatureTypeInfo info, SimpleFeatureSource fs, ProjectionPolicy ppolicy,
+	        List<Join> joins) throws IOException {
+	    CoordinateReferenceSystem resultCRS = null;
+        GeometryDescriptor gd = fs.getSchema().getGeometryDescriptor();
+        CoordinateReferenceSystem nativeCRS = gd != null ? gd.getCoordinateReferenceSystem() : null;
+        
+        if (ppolicy == ProjectionPolicy.NONE && nativeCRS != null) {
+            resultCRS = nativeCRS;
+        } else {
+            resultCRS = getCRS(info.getSRS());
+        }
+
+        // make sure we create the appropriate schema, with the right crs
+        // we checked above we are using DataStore/SimpleFeature/SimpleFeatureType (DSSFSFT)
+        SimpleFeatureType schema = (SimpleFeatureType) getFeatureType(info);
+        try {
+            if (!CRS.equalsIgnoreMetadata(resultCRS, schema.getCoordinateReferenceSystem()))
+                schema = ISOFeatureTypes.transform(schema, resultCRS);
+        } catch (Exception e) {
+            throw new DataSourceException(
+                    "Problem forcing CRS onto feature type", e);
+        }
+
+        //joining, check for join hint which requires us to create a shcema with some additional
+        // attributes
+        SimpleFeatureType joinedSchema = schema;
+        if (joins != null) {
+            ISOSimpleFeatureTypeBuilder typeBuilder = new ISOSimpleFeatureTypeBuilder();
+            typeBuilder.init(schema);
+            
+            for (Join j : joins) {
+                String attName = j.getAlias() != null ? j.getAlias() : j.getTypeName();
+                typeBuilder.add(attName, SimpleFeature.class);
+            }
+            joinedSchema = typeBuilder.buildFeatureType();
+        }
+        
+        return new FeatureSourceTarget(resultCRS, schema, joinedSchema);
+	}
+	
 
     /**
      * Returns the underlying resource for a DataAccess, caching the result.
@@ -201,116 +366,175 @@ public class ISOResourcePool extends ResourcePool {
      */
 	@Override
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( DataStoreInfo info ) throws IOException {
+    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( final DataStoreInfo info ) throws IOException {
         
-        DataStoreInfo expandedStore = clone(info, true);
+        final DataStoreInfo expandedStore = clone(info, true);
         
         DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
         try {
             String id = info.getId();
-            dataStore = dataStoreCache.get(id);
-            if ( dataStore == null ) {
-                synchronized (dataStoreCache) {
-                    dataStore = dataStoreCache.get( id );
-                    if ( dataStore == null ) {
-                        //create data store
-                        Map<String, Serializable> connectionParameters = expandedStore.getConnectionParameters();
-                        
-                        // call this method to execute the hack which recognizes 
-                        // urls which are relative to the data directory
-                        // TODO: find a better way to do this
-                        connectionParameters = ISOResourcePool.getParams(connectionParameters, catalog.getResourceLoader() );
-                        
-                        // obtain the factory
-                        DataAccessFactory factory = null;
-                        try {
-                            factory = getDataStoreFactory(info);
-                        } catch(IOException e) {
-                            throw new IOException("Failed to find the datastore factory for " + info.getName() 
-                                    + ", did you forget to install the store extension jar?");
-                        }
-                        if (factory == null) {
-                            throw new IOException("Failed to find the datastore factory for "
-                                    + info.getName()
-                                    + ", did you forget to install the store extension jar?");
-                        }
-                        Param[] params = factory.getParametersInfo();
-                        
-                        //ensure that the namespace parameter is set for the datastore
-                        if (!connectionParameters.containsKey( "namespace") && params != null) {
-                            //if we grabbed the factory, check that the factory actually supports
-                            // a namespace parameter, if we could not get the factory, assume that
-                            // it does
-                            boolean supportsNamespace = true;
-                            supportsNamespace = false;
-                            
-                            for ( Param p : params ) {
-                                if ( "namespace".equalsIgnoreCase( p.key ) ) {
-                                    supportsNamespace = true;
-                                    break;
-                                }
-                            }
-                            
-                            if ( supportsNamespace ) {
-                                WorkspaceInfo ws = info.getWorkspace();
-                                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
-                                if ( ns == null ) {
-                                    ns = info.getCatalog().getDefaultNamespace();
-                                }
-                                if ( ns != null ) {
-                                    connectionParameters.put( "namespace", ns.getURI() );
-                                }    
-                            }
-                        }
-                        
-                        // see if the store has a repository param, if so, pass the one wrapping
-                        // the store
-                        if(params != null) {
-                            for ( Param p : params ) {
-                                if(Repository.class.equals(p.getType())) {
-                                    connectionParameters.put(p.getName(), repository);
-                                }
+            if (id == null) {
+                // no need to cache the stores returned from un-saved DataStoreInfo objects
+                // (it would be actually harmful, NPE when trying to dispose of them)
+                dataStore = createDataStore(info, expandedStore);
+                return dataStore;
+            }
+            
+            synchronized (dataStoreCache) {
+                dataStore = dataStoreCache.get(id);
+            }
+            while ( dataStore == null ) {
+                // only the callers of this very store wait for it to be created
+                final String storeId = id;
+                FutureTask<DataAccess> task = new FutureTask<DataAccess>(new Callable<DataAccess>() {
+                    public DataAccess call() throws Exception {
+                        long clears;
+                        synchronized (dataStoreCache) {
+                            DataAccess store = dataStoreCache.get(storeId);
+                            if (store != null) {
+                                return store;
                             }
+                            clears = dataStoreClears;
                         }
-                        
-                        // see if the store has a entity resolver param, if so, pass it down
-                        EntityResolver resolver = getEntityResolver();
-                        if(resolver != null && params != null) {
-                            for ( Param p : params ) {
-                                if(EntityResolver.class.equals(p.getType())) {
-                                    if(!(resolver instanceof Serializable)) {
-                                        resolver = new SerializableEntityResolver(resolver);
-                                    }
-                                    connectionParameters.put(p.getName(), (Serializable) resolver);
-                                }
+                        // connect outside of the lock, other stores can be created meanwhile
+                        DataAccess store = createDataStore(info, expandedStore);
+                        synchronized (dataStoreCache) {
+                            if (clears == dataStoreClears) {
+                                dataStoreCache.put(storeId, store);
+                                return store;
                             }
                         }
-                        
-                        dataStore = ISODataStoreUtils.getDataAccess(connectionParameters);
-                        if (dataStore == null) {
-                            /*
-                             * Preserve DataStore retyping behaviour by calling
-                             * DataAccessFinder.getDataStore after the call to
-                             * DataStoreUtils.getDataStore above.
-                             * 
-                             * TODO: DataAccessFinder can also find DataStores, and when retyping is
-                             * supported for DataAccess, we can use a single mechanism.
-                             */
-                            dataStore = DataAccessFinder.getDataStore(connectionParameters);
-                        }
-                        
-                        if ( dataStore == null ) {
-                            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
-                        }
-                        
-                        // cache only if the id is not null, no need to cache the stores
-                        // returned from un-saved DataStoreInfo objects (it would be actually
-                        // harmful, NPE when trying to dispose of them)
-                        if(id != null) {
-                            dataStoreCache.put( id, dataStore );
+                        // the pool was cleared while connecting, the store might be stale
+                        store.dispose();
+                        return null;
+                    }
+                });
+                FutureTask<DataAccess> pending = pendingDataStores.putIfAbsent(id, task);
+                if (pending == null) {
+                    pending = task;
+                    try {
+                        task.run();
+                    } finally {
+                        pendingDataStores.remove(id, task);
+                    }
+                }
+                try {
+                    dataStore = pending.get();
+                } catch (ExecutionException e) {
+                    // the creating thread cleans up after itself
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else {
+                        throw (IOException) new IOException().initCause(cause);
+                    }
+                }
+            }
+            
+            return dataStore;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted while waiting for data access '" 
+                    + info.getName() + "'").initCause(e);
+        }
+    }
+    
+    /**
+     * Creates a new DataAccess from the store connection parameters
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    DataAccess<? extends FeatureType, ? extends Feature> createDataStore(DataStoreInfo info, 
+            DataStoreInfo expandedStore) throws IOException {
+        DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
+        try {
+            //create data store
+            Map<String, Serializable> connectionParameters = expandedStore.getConnectionParameters();
+            
+            // call this method to execute the hack which recognizes 
+            // urls which are relative to the data directory
+            // TODO: find a better way to do this
+            connectionParameters = ISOResourcePool.getParams(connectionParameters, catalog.getResourceLoader() );
+            
+            // obtain the factory
+            DataAccessFactory factory = null;
+            try {
+                factory = getDataStoreFactory(info);
+            } catch(IOException e) {
+                throw new IOException("Failed to find the datastore factory for " + info.getName() 
+                        + ", did you forget to install the store extension jar?");
+            }
+            if (factory == null) {
+                throw new IOException("Failed to find the datastore factory for "
+                        + info.getName()
+                        + ", did you forget to install the store extension jar?");
+            }
+            Param[] params = factory.getParametersInfo();
+            
+            //ensure that the namespace parameter is set for the datastore
+            if (!connectionParameters.containsKey( "namespace") && params != null) {
+                //if we grabbed the factory, check that the factory actually supports
+                // a namespace parameter, if we could not get the factory, assume that
+                // it does
+                boolean supportsNamespace = true;
+                supportsNamespace = false;
+                
+                for ( Param p : params ) {
+                    if ( "namespace".equalsIgnoreCase( p.key ) ) {
+                        supportsNamespace = true;
+                        break;
+                    }
+                }
+                
+                if ( supportsNamespace ) {
+                    WorkspaceInfo ws = info.getWorkspace();
+                    NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
+                    if ( ns == null ) {
+                        ns = info.getCatalog().getDefaultNamespace();
+                    }
+                    if ( ns != null ) {
+                        connectionParameters.put( "namespace", ns.getURI() );
+                    }    
+                }
+            }
+            
+            // see if the store has a repository param, if so, pass the one wrapping
+            // the store
+            if(params != null) {
+                for ( Param p : params ) {
+                    if(Repository.class.equals(p.getType())) {
+                        connectionParameters.put(p.getName(), repository);
+                    }
+                }
+            }
+            
+            // see if the store has a entity resolver param, if so, pass it down
+            EntityResolver resolver = getEntityResolver();
+            if(resolver != null && params != null) {
+                for ( Param p : params ) {
+                    if(EntityResolver.class.equals(p.getType())) {
+                        if(!(resolver instanceof Serializable)) {
+                            resolver = new SerializableEntityResolver(resolver);
                         }
+                        connectionParameters.put(p.getName(), (Serializable) resolver);
                     }
-                } 
+                }
+            }
+            
+            dataStore = ISODataStoreUtils.getDataAccess(connectionParameters);
+            if (dataStore == null) {
+                /*
+                 * Preserve DataStore retyping behaviour by calling
+                 * DataAccessFinder.getDataStore after the call to
+                 * DataStoreUtils.getDataStore above.
+                 * 
+                 * TODO: DataAccessFinder can also find DataStores, and when retyping is
+                 * supported for DataAccess, we can use a single mechanism.
+                 */
+                dataStore = DataAccessFinder.getDataStore(connectionParameters);
+            }
+            
+            if ( dataStore == null ) {
+                throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
             }
             
             return dataStore;
@@ -331,6 +555,41 @@ public class ISOResourcePool extends ResourcePool {
         }
     }
 	
+	/**
+	 * Connects to the given stores using the specified number of threads, returning the errors
+	 * of the stores that could not be connected to
+	 */
+	public static Map<DataStoreInfo, Throwable> warmUpDataStores(List<DataStoreInfo> stores, int threads) {
+	    final Map<DataStoreInfo, Throwable> errors = new ConcurrentHashMap<DataStoreInfo, Throwable>();
+	    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, stores.size())));
+	    try {
+	        List<Future<?>> futures = new ArrayList<Future<?>>();
+	        for (final DataStoreInfo store : stores) {
+	            futures.add(executor.submit(new Runnable() {
+	                public void run() {
+	                    try {
+	                        store.getDataStore(null);
+	                    } catch (Throwable t) {
+	                        errors.put(store, t);
+	                    }
+	                }
+	            }));
+	        }
+	        for (Future<?> future : futures) {
+	            try {
+	                future.get();
+	            } catch (ExecutionException e) {
+	                // errors are collected by the task itself
+	            }
+	        }
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	    } finally {
+	        executor.shutdownNow();
+	    }
+	    return errors;
+	}
+	
 	@Override
     public DataAccessFactory getDataStoreFactory( DataStoreInfo info ) throws IOException {
         DataAccessFactory factory = null;
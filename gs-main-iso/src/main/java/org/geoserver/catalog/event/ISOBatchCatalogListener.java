@@ -0,0 +1,36 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.event;
+
+import java.util.List;
+
+import org.geoserver.catalog.CatalogException;
+
+/**
+ * A catalog listener able to handle at once the events collected during a batch of catalog
+ * changes.
+ * <p>
+ * Outside of batches the listener receives the events one by one as usual. During a batch,
+ * started with {@link org.geoserver.catalog.impl.ISOCatalogImpl#beginBatch()}, the add, post
+ * modify and remove events are collected and delivered with a single
+ * {@link #handleEvents(List)} call when the batch ends, the modify events, fired before the
+ * changes are committed, are still delivered right away.
+ * </p>
+ */
+public interface ISOBatchCatalogListener extends CatalogListener {
+
+    /**
+     * Handles the events collected during a batch, in the order they were fired.
+     */
+    void handleEvents(List<CatalogEvent> events) throws CatalogException;
+
+    /**
+     * Returns true if the listener does not need to see the batch events before the batch
+     * returns, in which case they are delivered on a background thread. Batches are still
+     * delivered in order.
+     */
+    boolean isAsynchronous();
+}
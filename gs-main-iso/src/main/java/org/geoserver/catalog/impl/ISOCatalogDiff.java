@@ -0,0 +1,418 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geotools.util.Utilities;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Applies the differences between a freshly loaded catalog and the live one to the live catalog.
+ * <p>
+ * Objects are matched by id. The ones missing from the loaded catalog are removed, dependents
+ * first, the new ones are added and the changed ones are saved, containers first, using the
+ * normal catalog methods so that the listeners are notified of each change and the caches of
+ * the unchanged objects survive. Before being compared or added, the references of the loaded
+ * objects are rebound to the live objects with the same id. An object still referenced by a live
+ * object that stops referencing it in the loaded catalog cannot be removed before the referencing
+ * object is saved, so the removals failing in the first pass are tried again once the additions
+ * and modifications are applied.
+ * </p>
+ */
+class ISOCatalogDiff {
+
+    static final Logger LOGGER = Logging.getLogger(ISOCatalogDiff.class);
+
+    /**
+     * The catalog object types, containers first
+     */
+    static final Class<?>[] TYPES = { WorkspaceInfo.class, NamespaceInfo.class, StyleInfo.class,
+            StoreInfo.class, ResourceInfo.class, LayerInfo.class, LayerGroupInfo.class };
+
+    final ISOCatalogImpl live;
+
+    final ISOCatalogImpl loaded;
+
+    int added;
+
+    int modified;
+
+    int removed;
+
+    ISOCatalogDiff(ISOCatalogImpl live, ISOCatalogImpl loaded) {
+        this.live = live;
+        this.loaded = loaded;
+    }
+
+    void apply() {
+        live.beginBatch();
+        boolean completed = false;
+        try {
+            // removals first, dependents before their containers
+            List<CatalogInfo> deferred = new ArrayList<CatalogInfo>();
+            for (int i = TYPES.length - 1; i >= 0; i--) {
+                removeMissing(TYPES[i], deferred);
+            }
+            // then additions and modifications, containers before their dependents
+            for (Class<?> type : TYPES) {
+                merge(type);
+                if (type == NamespaceInfo.class) {
+                    mergeDefaults();
+                }
+            }
+            mergeDefaultStores();
+            // the objects no longer referenced once the others are saved
+            for (CatalogInfo info : deferred) {
+                try {
+                    remove(info);
+                    removed++;
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to remove " + info.getId()
+                            + " from the catalog", e);
+                }
+            }
+            completed = true;
+        } finally {
+            live.endBatch(!completed);
+        }
+
+        LOGGER.info("Catalog reloaded incrementally, " + added + " objects added, " + modified
+                + " modified, " + removed + " removed");
+    }
+
+    /**
+     * Removes the objects missing from the loaded catalog, the ones that cannot be removed yet are
+     * added to <code>deferred</code>
+     */
+    void removeMissing(Class<?> type, List<CatalogInfo> deferred) {
+        Set<String> ids = new HashSet<String>();
+        for (CatalogInfo info : list(loaded, type)) {
+            ids.add(info.getId());
+        }
+        for (CatalogInfo info : list(live, type)) {
+            if (!ids.contains(info.getId())) {
+                try {
+                    remove(info);
+                    removed++;
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Could not remove " + info.getId()
+                            + " from the catalog yet", e);
+                    deferred.add(info);
+                }
+            }
+        }
+    }
+
+    void merge(Class<?> type) {
+        for (CatalogInfo info : list(loaded, type)) {
+            CatalogInfo raw = ModificationProxy.unwrap(info);
+            try {
+                rebind(raw);
+                CatalogInfo current = get(live, type, raw.getId());
+                if (current == null) {
+                    add(raw);
+                    added++;
+                } else if (!ModificationProxy.unwrap(current).equals(raw) && copy(raw, current)) {
+                    save(current);
+                    modified++;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to reload " + raw.getId() + " in the catalog",
+                        e);
+            }
+        }
+    }
+
+    void mergeDefaults() {
+        WorkspaceInfo ws = loaded.getDefaultWorkspace();
+        if (ws != null && !sameId(ws, live.getDefaultWorkspace())) {
+            WorkspaceInfo target = live.getWorkspace(ws.getId());
+            if (target != null) {
+                live.setDefaultWorkspace(target);
+            }
+        }
+        NamespaceInfo ns = loaded.getDefaultNamespace();
+        if (ns != null && !sameId(ns, live.getDefaultNamespace())) {
+            NamespaceInfo target = live.getNamespace(ns.getId());
+            if (target != null) {
+                live.setDefaultNamespace(target);
+            }
+        }
+    }
+
+    void mergeDefaultStores() {
+        for (WorkspaceInfo ws : live.getWorkspaces()) {
+            WorkspaceInfo loadedWs = loaded.getWorkspace(ws.getId());
+            DataStoreInfo store = loadedWs == null ? null : loaded.getDefaultDataStore(loadedWs);
+            if (store != null && !sameId(store, live.getDefaultDataStore(ws))) {
+                DataStoreInfo target = live.getStore(store.getId(), DataStoreInfo.class);
+                if (target != null) {
+                    live.setDefaultDataStore(ws, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Points the references of a loaded object to the live objects with the same id
+     */
+    void rebind(CatalogInfo info) {
+        if (info instanceof StoreInfo) {
+            StoreInfo store = (StoreInfo) info;
+            store.setWorkspace(bind(store.getWorkspace()));
+        } else if (info instanceof ResourceInfo) {
+            ResourceInfo resource = (ResourceInfo) info;
+            resource.setStore(bind(resource.getStore()));
+            resource.setNamespace(bind(resource.getNamespace()));
+        } else if (info instanceof StyleInfo) {
+            StyleInfo style = (StyleInfo) info;
+            style.setWorkspace(bind(style.getWorkspace()));
+        } else if (info instanceof LayerInfo) {
+            LayerInfo layer = (LayerInfo) info;
+            layer.setResource(bind(layer.getResource()));
+            layer.setDefaultStyle(bind(layer.getDefaultStyle()));
+            bindAll(layer.getStyles());
+        } else if (info instanceof LayerGroupInfo) {
+            LayerGroupInfo group = (LayerGroupInfo) info;
+            group.setWorkspace(bind(group.getWorkspace()));
+            group.setRootLayer(bind(group.getRootLayer()));
+            group.setRootLayerStyle(bind(group.getRootLayerStyle()));
+            bindAll(group.getLayers());
+            bindAll(group.getStyles());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends CatalogInfo> T bind(T reference) {
+        if (reference == null) {
+            return null;
+        }
+        CatalogInfo target = get(live, typeOf(reference), reference.getId());
+        return target != null ? (T) ModificationProxy.unwrap(target) : reference;
+    }
+
+    <T extends CatalogInfo> void bindAll(Collection<T> references) {
+        if (references == null || references.isEmpty()) {
+            return;
+        }
+        List<T> bound = new ArrayList<T>(references.size());
+        for (T reference : references) {
+            bound.add(bind(reference));
+        }
+        references.clear();
+        references.addAll(bound);
+    }
+
+    /**
+     * Sets on the live object proxy the properties whose value differs in the loaded object,
+     * returns false if none did
+     */
+    @SuppressWarnings("unchecked")
+    boolean copy(CatalogInfo source, CatalogInfo target) {
+        boolean changed = false;
+        List<Method> methods = methods(target);
+        for (Method getter : methods) {
+            String property = property(getter);
+            if (property == null || "Id".equals(property)) {
+                continue;
+            }
+            try {
+                Method setter = setter(methods, property, getter.getReturnType());
+                if (setter == null && !Collection.class.isAssignableFrom(getter.getReturnType())
+                        && !Map.class.isAssignableFrom(getter.getReturnType())) {
+                    continue;
+                }
+                Object value = getter.invoke(source);
+                Object current = getter.invoke(target);
+                if (Utilities.deepEquals(value, current)) {
+                    continue;
+                }
+                if (setter != null) {
+                    setter.invoke(target, value);
+                } else if (current instanceof Collection) {
+                    ((Collection<Object>) current).clear();
+                    if (value != null) {
+                        ((Collection<Object>) current).addAll((Collection<Object>) value);
+                    }
+                } else if (current instanceof Map) {
+                    ((Map<Object, Object>) current).clear();
+                    if (value != null) {
+                        ((Map<Object, Object>) current).putAll((Map<Object, Object>) value);
+                    }
+                } else {
+                    continue;
+                }
+                changed = true;
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not reload property " + property + " of "
+                        + source.getId(), e);
+            }
+        }
+        return changed;
+    }
+
+    static String property(Method getter) {
+        if (getter.getParameterTypes().length > 0 || getter.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        String name = getter.getName();
+        if (name.startsWith("get") && name.length() > 3) {
+            return name.substring(3);
+        }
+        if (name.startsWith("is") && name.length() > 2
+                && (getter.getReturnType() == boolean.class || getter.getReturnType() == Boolean.class)) {
+            return name.substring(2);
+        }
+        return null;
+    }
+
+    /**
+     * The methods of the interfaces implemented by the object, which can be invoked both on the
+     * raw objects and on their modification proxies
+     */
+    static List<Method> methods(Object target) {
+        List<Method> methods = new ArrayList<Method>();
+        for (Class<?> type : target.getClass().getInterfaces()) {
+            for (Method m : type.getMethods()) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    static Method setter(List<Method> methods, String property, Class<?> type) {
+        for (Method m : methods) {
+            if (m.getName().equals("set" + property) && m.getParameterTypes().length == 1
+                    && m.getParameterTypes()[0].isAssignableFrom(type)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    static boolean sameId(CatalogInfo info, CatalogInfo other) {
+        return other != null && info.getId().equals(other.getId());
+    }
+
+    static Class<?> typeOf(CatalogInfo info) {
+        for (Class<?> type : TYPES) {
+            if (type.isInstance(info)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown catalog object type: " + info);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<? extends CatalogInfo> list(ISOCatalogImpl catalog, Class<?> type) {
+        if (type == WorkspaceInfo.class) {
+            return catalog.getWorkspaces();
+        } else if (type == NamespaceInfo.class) {
+            return catalog.getNamespaces();
+        } else if (type == StyleInfo.class) {
+            return catalog.getStyles();
+        } else if (type == StoreInfo.class) {
+            return catalog.getStores(StoreInfo.class);
+        } else if (type == ResourceInfo.class) {
+            return catalog.getResources(ResourceInfo.class);
+        } else if (type == LayerInfo.class) {
+            return catalog.getLayers();
+        } else {
+            return catalog.getLayerGroups();
+        }
+    }
+
+    static CatalogInfo get(ISOCatalogImpl catalog, Class<?> type, String id) {
+        if (type == WorkspaceInfo.class) {
+            return catalog.getWorkspace(id);
+        } else if (type == NamespaceInfo.class) {
+            return catalog.getNamespace(id);
+        } else if (type == StyleInfo.class) {
+            return catalog.getStyle(id);
+        } else if (type == StoreInfo.class) {
+            return catalog.getStore(id, StoreInfo.class);
+        } else if (type == ResourceInfo.class) {
+            return catalog.getResource(id, ResourceInfo.class);
+        } else if (type == LayerInfo.class) {
+            return catalog.getLayer(id);
+        } else if (type == LayerGroupInfo.class) {
+            return catalog.getLayerGroup(id);
+        }
+        return null;
+    }
+
+    void add(CatalogInfo info) {
+        if (info instanceof WorkspaceInfo) {
+            live.add((WorkspaceInfo) info);
+        } else if (info instanceof NamespaceInfo) {
+            live.add((NamespaceInfo) info);
+        } else if (info instanceof StyleInfo) {
+            live.add((StyleInfo) info);
+        } else if (info instanceof StoreInfo) {
+            live.add((StoreInfo) info);
+        } else if (info instanceof ResourceInfo) {
+            live.add((ResourceInfo) info);
+        } else if (info instanceof LayerInfo) {
+            live.add((LayerInfo) info);
+        } else if (info instanceof LayerGroupInfo) {
+            live.add((LayerGroupInfo) info);
+        }
+    }
+
+    void save(CatalogInfo info) {
+        if (info instanceof WorkspaceInfo) {
+            live.save((WorkspaceInfo) info);
+        } else if (info instanceof NamespaceInfo) {
+            live.save((NamespaceInfo) info);
+        } else if (info instanceof StyleInfo) {
+            live.save((StyleInfo) info);
+        } else if (info instanceof StoreInfo) {
+            live.save((StoreInfo) info);
+        } else if (info instanceof ResourceInfo) {
+            live.save((ResourceInfo) info);
+        } else if (info instanceof LayerInfo) {
+            live.save((LayerInfo) info);
+        } else if (info instanceof LayerGroupInfo) {
+            live.save((LayerGroupInfo) info);
+        }
+    }
+
+    void remove(CatalogInfo info) {
+        if (info instanceof WorkspaceInfo) {
+            live.remove((WorkspaceInfo) info);
+        } else if (info instanceof NamespaceInfo) {
+            live.remove((NamespaceInfo) info);
+        } else if (info instanceof StyleInfo) {
+            live.remove((StyleInfo) info);
+        } else if (info instanceof StoreInfo) {
+            live.remove((StoreInfo) info);
+        } else if (info instanceof ResourceInfo) {
+            live.remove((ResourceInfo) info);
+        } else if (info instanceof LayerInfo) {
+            live.remove((LayerInfo) info);
+        } else if (info instanceof LayerGroupInfo) {
+            live.remove((LayerGroupInfo) info);
+        }
+    }
+}
@@ -14,6 +14,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -48,6 +51,7 @@ import org.geoserver.catalog.ValidationResult;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.Wrapper;
 import org.geoserver.catalog.LayerGroupInfo.Mode;
 import org.geoserver.catalog.event.CatalogAddEvent;
 import org.geoserver.catalog.event.CatalogEvent;
@@ -55,6 +59,7 @@ import org.geoserver.catalog.event.CatalogListener;
 import org.geoserver.catalog.event.CatalogModifyEvent;
 import org.geoserver.catalog.event.CatalogPostModifyEvent;
 import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.catalog.event.ISOBatchCatalogListener;
 import org.geoserver.catalog.event.impl.CatalogAddEventImpl;
 import org.geoserver.catalog.event.impl.CatalogModifyEventImpl;
 import org.geoserver.catalog.event.impl.CatalogPostModifyEventImpl;
@@ -70,6 +75,8 @@ import org.geoserver.catalog.impl.StoreInfoImpl;
 import org.geoserver.catalog.impl.StyleInfoImpl;
 import org.geoserver.catalog.impl.WMSLayerInfoImpl;
 import org.geoserver.catalog.util.CloseableIterator;
+import org.geoserver.config.GeoServerPersister;
+import org.geoserver.config.ISOBatchGeoServerPersister;
 import org.geoserver.ows.util.OwsUtils;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
@@ -105,6 +112,16 @@ public class ISOCatalogImpl implements Catalog {
      */
     protected List listeners = new ArrayList();
 
+    /**
+     * The events collected by the batch in progress on each thread
+     */
+    protected ThreadLocal<EventBatch> batches = new ThreadLocal<EventBatch>();
+
+    /**
+     * Delivers the batches to the asynchronous listeners, one at a time
+     */
+    static ExecutorService batchDispatcher;
+
     /** 
      * resources
      */
@@ -1430,6 +1447,10 @@ public class ISOCatalogImpl implements Catalog {
     }
 
     public void addListener(CatalogListener listener) {
+        if (listener.getClass() == GeoServerPersister.class) {
+            // write each object once per batch
+            listener = new ISOBatchGeoServerPersister((GeoServerPersister) listener);
+        }
         listeners.add(listener);
 
     }
@@ -1442,7 +1463,8 @@ public class ISOCatalogImpl implements Catalog {
     public void removeListeners(Class listenerClass) {
         for (Iterator it = listeners.iterator(); it.hasNext();) {
             CatalogListener listener = (CatalogListener) it.next();
-            if(listenerClass.isInstance(listener)) {
+            if(listenerClass.isInstance(listener) || listener instanceof Wrapper
+                    && ((Wrapper) listener).isWrapperFor(listenerClass)) {
                 it.remove();
             }
         }
@@ -1513,21 +1535,164 @@ public class ISOCatalogImpl implements Catalog {
         event(event);
     }
 
+    /**
+     * Starts a batch of changes on the current thread. Until the matching {@link #endBatch()}
+     * the add, post modify and remove events are collected, and then delivered to each listener
+     * in one go, with a single call for the {@link ISOBatchCatalogListener} ones. Modify events
+     * are still delivered right away as listeners can veto the change. Batches can be nested,
+     * the events are delivered when the outermost one ends.
+     * <p>
+     * Must be followed by {@link #endBatch()}, or {@link #endBatch(boolean)} in a finally block.
+     * </p>
+     */
+    public void beginBatch() {
+        EventBatch batch = batches.get();
+        if (batch == null) {
+            batch = new EventBatch();
+            batches.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}, delivering the collected events if it was
+     * the outermost one
+     */
+    public void endBatch() {
+        endBatch(false);
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}, delivering the collected events if it was
+     * the outermost one.
+     * 
+     * @param failed true if the batch is ended because of an exception, in which case the
+     *        listener errors are logged instead of thrown, so that they do not replace it
+     */
+    public void endBatch(boolean failed) {
+        EventBatch batch = batches.get();
+        if (batch == null) {
+            if (failed) {
+                LOGGER.warning("No batch in progress");
+                return;
+            }
+            throw new IllegalStateException("No batch in progress");
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        batches.remove();
+        if (!batch.events.isEmpty()) {
+            dispatch(batch.events, failed);
+        }
+    }
+
+    /**
+     * Delivers the events of a batch, listener by listener
+     */
+    protected void dispatch(final List<CatalogEvent> events, boolean failed) {
+        CatalogException toThrow = null;
+        
+        for (Iterator l = listeners.iterator(); l.hasNext();) {
+            CatalogListener listener = (CatalogListener) l.next();
+            try {
+                if (listener instanceof ISOBatchCatalogListener) {
+                    final ISOBatchCatalogListener batchListener = (ISOBatchCatalogListener) listener;
+                    if (batchListener.isAsynchronous()) {
+                        batchDispatcher().execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    batchListener.handleEvents(events);
+                                } catch (Throwable t) {
+                                    LOGGER.log(Level.WARNING,
+                                            "Catalog listener threw exception handling events.", t);
+                                }
+                            }
+                        });
+                    } else {
+                        batchListener.handleEvents(events);
+                    }
+                } else {
+                    for (CatalogEvent event : events) {
+                        try {
+                            deliver(listener, event);
+                        } catch (Throwable t) {
+                            if (t instanceof CatalogException && toThrow == null) {
+                                toThrow = (CatalogException) t;
+                            } else {
+                                LOGGER.log(Level.WARNING,
+                                        "Catalog listener threw exception handling event.", t);
+                            }
+                        }
+                    }
+                }
+            } catch(Throwable t) {
+                if ( t instanceof CatalogException && toThrow == null) {
+                    toThrow = (CatalogException) t;
+                }
+                else {
+                    LOGGER.log(Level.WARNING, "Catalog listener threw exception handling event.", t);
+                }
+            }
+        }
+        
+        if (toThrow != null) {
+            if (failed) {
+                LOGGER.log(Level.WARNING, "Catalog listener threw exception handling events.",
+                        toThrow);
+            } else {
+                throw toThrow;
+            }
+        }
+    }
+
+    static synchronized ExecutorService batchDispatcher() {
+        if (batchDispatcher == null) {
+            batchDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Catalog batch event dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return batchDispatcher;
+    }
+
+    void deliver(CatalogListener listener, CatalogEvent event) throws CatalogException {
+        if (event instanceof CatalogAddEvent) {
+            listener.handleAddEvent((CatalogAddEvent) event);
+        } else if (event instanceof CatalogRemoveEvent) {
+            listener.handleRemoveEvent((CatalogRemoveEvent) event);
+        } else if (event instanceof CatalogModifyEvent) {
+            listener.handleModifyEvent((CatalogModifyEvent) event);
+        } else if (event instanceof CatalogPostModifyEvent) {
+            listener.handlePostModifyEvent((CatalogPostModifyEvent)event);
+        }
+    }
+
+    /**
+     * The events collected by a batch
+     */
+    static class EventBatch {
+        int depth;
+
+        List<CatalogEvent> events = new ArrayList<CatalogEvent>();
+    }
+
     protected void event(CatalogEvent event) {
+        EventBatch batch = batches.get();
+        if (batch != null && !(event instanceof CatalogModifyEvent)) {
+            batch.events.add(event);
+            return;
+        }
+        
         CatalogException toThrow = null;
         
         for (Iterator l = listeners.iterator(); l.hasNext();) {
             try {
                 CatalogListener listener = (CatalogListener) l.next();
-                if (event instanceof CatalogAddEvent) {
-                    listener.handleAddEvent((CatalogAddEvent) event);
-                } else if (event instanceof CatalogRemoveEvent) {
-                    listener.handleRemoveEvent((CatalogRemoveEvent) event);
-                } else if (event instanceof CatalogModifyEvent) {
-                    listener.handleModifyEvent((CatalogModifyEvent) event);
-                } else if (event instanceof CatalogPostModifyEvent) {
-                    listener.handlePostModifyEvent((CatalogPostModifyEvent)event);
-                }
+                deliver(listener, event);
             } catch(Throwable t) {
                 if ( t instanceof CatalogException && toThrow == null) {
                     toThrow = (CatalogException) t;
@@ -1774,6 +1939,15 @@ public class ISOCatalogImpl implements Catalog {
         resourceLoader = other.resourceLoader;
     }
     
+    /**
+     * Brings this catalog in line with the other one applying only the differences, objects are
+     * added, removed and saved with the usual events, so that the resource pool caches of the
+     * unchanged objects are preserved. The other catalog should be discarded afterwards.
+     */
+    public void syncIncrementally( ISOCatalogImpl other ) {
+        new ISOCatalogDiff(this, other).apply();
+    }
+    
     public void accept(CatalogVisitor visitor) {
         visitor.visit(this);
     }
@@ -0,0 +1,262 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geoserver.catalog.CatalogInfo;
+
+import com.google.common.base.Function;
+
+/**
+ * Hash index of catalog objects by id and by a set of attributes (name, owner id, ...).
+ * <p>
+ * Writes are serialized and only add or remove the object in the bucket of each of its keys, so
+ * that adding or removing an object does not depend on how many objects share its keys. Reads get
+ * an immutable list of a bucket, built on the first read following a write and kept until the
+ * next write to the bucket, so that they never see a partially updated list and only lock while
+ * building it. The keys each object was indexed with are remembered, so that an object can be
+ * re-indexed after its attributes changed on save.
+ * </p>
+ */
+@SuppressWarnings("unchecked")
+class ISOCatalogIndex<T extends CatalogInfo> {
+
+    /**
+     * Key used for null attribute values
+     */
+    static final String NULL_KEY = "";
+
+    final Function<? super T, String>[] attributes;
+
+    final ConcurrentMap<String, T> byId = new ConcurrentHashMap<String, T>();
+
+    final List<ConcurrentMap<String, Bucket<T>>> byAttribute;
+
+    /**
+     * The attribute keys each object was indexed with, by object id
+     */
+    final Map<String, String[]> indexedKeys = new HashMap<String, String[]>();
+
+    /**
+     * The objects sorted by attribute, built on demand and dropped at each write
+     */
+    volatile Sorted<T>[] sorted;
+
+    @SafeVarargs
+    ISOCatalogIndex(Function<? super T, String>... attributes) {
+        this.attributes = attributes;
+        this.byAttribute = new ArrayList<ConcurrentMap<String, Bucket<T>>>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            byAttribute.add(new ConcurrentHashMap<String, Bucket<T>>());
+        }
+        this.sorted = new Sorted[attributes.length];
+    }
+
+    /**
+     * Returns the object with the specified id, or null
+     */
+    T get(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * Returns the objects whose attribute has the specified value, the list must not be modified
+     */
+    List<T> get(int attribute, String value) {
+        Bucket<T> bucket = byAttribute.get(attribute).get(value == null ? NULL_KEY : value);
+        if (bucket == null) {
+            return Collections.<T> emptyList();
+        }
+        List<T> result = bucket.list;
+        if (result == null) {
+            synchronized (this) {
+                result = bucket.list;
+                if (result == null) {
+                    result = Collections.unmodifiableList(new ArrayList<T>(bucket.items.values()));
+                    bucket.list = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all the objects sorted by the specified attribute, null values first, the list must
+     * not be modified
+     */
+    List<T> sorted(int attribute) {
+        return sortedSnapshot(attribute).items;
+    }
+
+    /**
+     * Returns the objects whose attribute starts with the specified prefix, sorted by that
+     * attribute
+     */
+    List<T> withPrefix(int attribute, String prefix) {
+        Sorted<T> snapshot = sortedSnapshot(attribute);
+        int from = snapshot.lowerBound(prefix);
+        // all the strings starting with prefix are lower than prefix followed by the max char
+        int to = snapshot.lowerBound(prefix + Character.MAX_VALUE);
+        return snapshot.items.subList(from, to);
+    }
+
+    Sorted<T> sortedSnapshot(final int attribute) {
+        Sorted<T> result = sorted[attribute];
+        if (result == null) {
+            synchronized (this) {
+                result = sorted[attribute];
+                if (result == null) {
+                    List<T> all = new ArrayList<T>(byId.values());
+                    Collections.sort(all, new Comparator<T>() {
+                        public int compare(T o1, T o2) {
+                            String[] k1 = indexedKeys.get(o1.getId());
+                            String[] k2 = indexedKeys.get(o2.getId());
+                            int result = k1[attribute].compareTo(k2[attribute]);
+                            return result != 0 ? result : o1.getId().compareTo(o2.getId());
+                        }
+                    });
+                    String[] keys = new String[all.size()];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = indexedKeys.get(all.get(i).getId())[attribute];
+                    }
+                    result = new Sorted<T>(Collections.unmodifiableList(all), keys);
+                    sorted[attribute] = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    synchronized void add(T info) {
+        String id = info.getId();
+        if (id == null) {
+            return;
+        }
+        remove(id);
+
+        String[] keys = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            String key = attributes[i].apply(info);
+            keys[i] = key == null ? NULL_KEY : key;
+            ConcurrentMap<String, Bucket<T>> index = byAttribute.get(i);
+            Bucket<T> bucket = index.get(keys[i]);
+            if (bucket == null) {
+                bucket = new Bucket<T>();
+                index.put(keys[i], bucket);
+            }
+            bucket.items.put(id, info);
+            bucket.list = null;
+        }
+        indexedKeys.put(id, keys);
+        byId.put(id, info);
+        sorted = new Sorted[attributes.length];
+    }
+
+    synchronized void remove(T info) {
+        if (info.getId() != null) {
+            remove(info.getId());
+        }
+    }
+
+    /**
+     * Re-indexes an object whose attributes might have changed
+     */
+    synchronized void update(T info) {
+        add(info);
+    }
+
+    synchronized void clear() {
+        byId.clear();
+        for (ConcurrentMap<String, Bucket<T>> index : byAttribute) {
+            index.clear();
+        }
+        indexedKeys.clear();
+        sorted = new Sorted[attributes.length];
+    }
+
+    /**
+     * Rebuilds the index from scratch
+     */
+    synchronized void reindex(Iterable<? extends T> all) {
+        clear();
+        for (T info : all) {
+            add(info);
+        }
+    }
+
+    private void remove(String id) {
+        String[] keys = indexedKeys.remove(id);
+        byId.remove(id);
+        if (keys == null) {
+            return;
+        }
+        sorted = new Sorted[attributes.length];
+        for (int i = 0; i < keys.length; i++) {
+            ConcurrentMap<String, Bucket<T>> index = byAttribute.get(i);
+            Bucket<T> bucket = index.get(keys[i]);
+            if (bucket == null) {
+                continue;
+            }
+            bucket.items.remove(id);
+            bucket.list = null;
+            if (bucket.items.isEmpty()) {
+                index.remove(keys[i]);
+            }
+        }
+    }
+
+    /**
+     * The objects sharing a key, in insertion order, modified only while holding the index lock
+     */
+    static class Bucket<T> {
+        final Map<String, T> items = new LinkedHashMap<String, T>();
+
+        /**
+         * Immutable copy of the items, null until read after a write
+         */
+        volatile List<T> list;
+    }
+
+    /**
+     * An immutable snapshot of the objects sorted by an attribute, along with their keys
+     */
+    static class Sorted<T> {
+        final List<T> items;
+
+        final String[] keys;
+
+        Sorted(List<T> items, String[] keys) {
+            this.items = items;
+            this.keys = keys;
+        }
+
+        /**
+         * First position whose key is greater or equal than the value
+         */
+        int lowerBound(String value) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(value) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
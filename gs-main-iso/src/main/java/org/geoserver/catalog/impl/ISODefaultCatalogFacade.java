@@ -10,6 +10,7 @@ import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -36,11 +37,19 @@ import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.catalog.util.CloseableIterator;
 import org.geoserver.catalog.util.CloseableIteratorAdapter;
 import org.geoserver.ows.util.OwsUtils;
+import org.opengis.filter.And;
 import org.opengis.filter.Filter;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsLike;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.sort.SortBy;
 import org.opengis.filter.sort.SortOrder;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 
 /**
@@ -100,6 +109,44 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
      */
     protected List<StyleInfo> styles = new CopyOnWriteArrayList<StyleInfo>();
 
+    /**
+     * store index, by id, name and workspace
+     */
+    protected ISOCatalogIndex<StoreInfo> storeIndex = newStoreIndex();
+    
+    /**
+     * resource index, by id, name, namespace and store
+     */
+    protected ISOCatalogIndex<ResourceInfo> resourceIndex = newResourceIndex();
+    
+    /**
+     * layer index, by id, name and resource
+     */
+    protected ISOCatalogIndex<LayerInfo> layerIndex = newLayerIndex();
+    
+    /**
+     * style index, by id and name
+     */
+    protected ISOCatalogIndex<StyleInfo> styleIndex = newStyleIndex();
+    
+    /*
+     * Attribute positions in the indexes: name, then owner (workspace or namespace) and store for
+     * resources, or resource for layers
+     */
+    static final int NAME = 0;
+    
+    static final int OWNER = 1;
+    
+    static final int STORE = 2;
+    
+    static final int RESOURCE = 1;
+    
+    static final Function<CatalogInfo, String> ID_OF = new Function<CatalogInfo, String>() {
+        public String apply(CatalogInfo info) {
+            return info != null ? info.getId() : null;
+        }
+    };
+
     /**
      * the catalog
      */
@@ -124,6 +171,7 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         resolve(store);
         synchronized(stores) {
             stores.put(store.getClass(), store);
+            storeIndex.add(store);
         }
         return ModificationProxy.create(store, StoreInfo.class);
     }
@@ -133,11 +181,13 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
 
         synchronized(stores) {
             stores.remove(store.getClass(),store);
+            storeIndex.remove(store);
         }
     }
     
     public void save(StoreInfo store) {
         saved(store);
+        storeIndex.update(unwrap(store));
     }
     
     public <T extends StoreInfo> T detach(T store) {
@@ -145,12 +195,9 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     }
 
     public <T extends StoreInfo> T getStore(String id, Class<T> clazz) {
-        List l = lookup(clazz, stores);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            StoreInfo store = (StoreInfo) i.next();
-            if (id.equals(store.getId())) {
-                return ModificationProxy.create( (T) store, clazz );
-            }
+        StoreInfo store = storeIndex.get(id);
+        if (clazz.isInstance(store)) {
+            return ModificationProxy.create( (T) store, clazz );
         }
 
         return null;
@@ -159,26 +206,27 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     public <T extends StoreInfo> T getStoreByName(WorkspaceInfo workspace,
             String name, Class<T> clazz) {
         
-        List l = lookup(clazz, stores);
+        List<StoreInfo> l = storeIndex.get(NAME, name);
         if (workspace == ANY_WORKSPACE) {
-            //do an exhaustive search through all workspaces
-            ArrayList matches = new ArrayList();
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                T store = (T) i.next();
-                if ( name.equals( store.getName() ) ) {
-                    matches.add( store );
+            //look among all workspaces, the name must be unique
+            T match = null;
+            for (StoreInfo store : l) {
+                if (clazz.isInstance(store)) {
+                    if (match != null) {
+                        return null;
+                    }
+                    match = (T) store;
                 }
             }
             
-            if ( matches.size() == 1 ) {
-                return ModificationProxy.create( (T) matches.get( 0 ), clazz);
+            if ( match != null ) {
+                return ModificationProxy.create( match, clazz);
             }
         }
         else {
             
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                StoreInfo store = (StoreInfo) i.next();
-                if (name.equals(store.getName()) && store.getWorkspace().equals( workspace )) {
+            for (StoreInfo store : l) {
+                if (clazz.isInstance(store) && store.getWorkspace().equals( workspace )) {
                     return ModificationProxy.create( (T) store, clazz );
                 }
             }
@@ -195,12 +243,10 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
             workspace = getDefaultWorkspace();
         }
 
-        List all = lookup(clazz, stores);
         List matches = new ArrayList();
 
-        for (Iterator s = all.iterator(); s.hasNext();) {
-            StoreInfo store = (StoreInfo) s.next();
-            if (workspace.equals(store.getWorkspace())) {
+        for (StoreInfo store : storeIndex.get(OWNER, workspace.getId())) {
+            if (clazz.isInstance(store) && workspace.equals(store.getWorkspace())) {
                 matches.add(store);
             }
         }
@@ -244,6 +290,7 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         resolve(resource);
         synchronized(resources) {
             resources.put(resource.getClass(), resource);
+            resourceIndex.add(resource);
         }
         return ModificationProxy.create(resource, ResourceInfo.class);
     }
@@ -252,12 +299,19 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         resource = unwrap(resource);
         synchronized(resources) {
             resources.remove(resource.getClass(), resource);
+            resourceIndex.remove(resource);
         }
     }
     
    
     public void save(ResourceInfo resource) {
         saved(resource);
+        resource = unwrap(resource);
+        resourceIndex.update(resource);
+        // layer names follow the resource ones
+        for (LayerInfo layer : layerIndex.get(RESOURCE, resource.getId())) {
+            layerIndex.update(layer);
+        }
     }
     
     public <T extends ResourceInfo> T detach(T resource) {
@@ -265,12 +319,9 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     }
     
     public <T extends ResourceInfo> T getResource(String id, Class<T> clazz) {
-        List l = lookup(clazz, resources);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            ResourceInfo resource = (ResourceInfo) i.next();
-            if (id.equals(resource.getId())) {
-                return ModificationProxy.create((T) resource, clazz );
-            }
+        ResourceInfo resource = resourceIndex.get(id);
+        if (clazz.isInstance(resource)) {
+            return ModificationProxy.create((T) resource, clazz );
         }
 
         return null;
@@ -278,26 +329,27 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     
     public <T extends ResourceInfo> T getResourceByName(NamespaceInfo namespace, String name, Class<T> clazz) {
         
-        List l = lookup(clazz, resources);
+        List<ResourceInfo> l = resourceIndex.get(NAME, name);
         
         if (namespace == ANY_NAMESPACE) {
-            //do an exhaustive lookup
-            List matches = new ArrayList();
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                ResourceInfo resource = (ResourceInfo) i.next();
-                if (name.equals(resource.getName())) {
-                    matches.add( resource );
+            //look among all namespaces, the name must be unique
+            T match = null;
+            for (ResourceInfo resource : l) {
+                if (clazz.isInstance(resource)) {
+                    if (match != null) {
+                        return null;
+                    }
+                    match = (T) resource;
                 }
             }
             
-            if ( matches.size() == 1 ) {
-                return ModificationProxy.create( (T) matches.get( 0 ), clazz );
+            if ( match != null ) {
+                return ModificationProxy.create( match, clazz );
             }
         }
         else {
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                ResourceInfo resource = (ResourceInfo) i.next();
-                if (name.equals(resource.getName())) {
+            for (ResourceInfo resource : l) {
+                if (clazz.isInstance(resource)) {
                     NamespaceInfo namespace1 = resource.getNamespace();
                     if (namespace1 != null && namespace1.equals( namespace )) {
                             return ModificationProxy.create( (T) resource, clazz );
@@ -316,15 +368,17 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     public List getResourcesByNamespace(NamespaceInfo namespace, Class clazz) {
         //TODO: support ANY_NAMESPACE?
         
-        List all = lookup(clazz, resources);
         List matches = new ArrayList();
 
         if ( namespace == null ) {
             namespace = getDefaultNamespace();
         }
 
-        for (Iterator r = all.iterator(); r.hasNext();) {
-            ResourceInfo resource = (ResourceInfo) r.next();
+        List<ResourceInfo> all = resourceIndex.get(OWNER, namespace != null ? namespace.getId() : null);
+        for (ResourceInfo resource : all) {
+            if (!clazz.isInstance(resource)) {
+                continue;
+            }
             if (namespace != null ) {
                 if (namespace.equals(resource.getNamespace())) {
                     matches.add( resource );
@@ -340,10 +394,8 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     
     public <T extends ResourceInfo> T getResourceByStore(StoreInfo store,
             String name, Class<T> clazz) {
-        List all = lookup(clazz,resources);
-        for (Iterator r = all.iterator(); r.hasNext(); ) {
-            ResourceInfo resource = (ResourceInfo) r.next();
-            if ( name.equals( resource.getName() ) && store.equals( resource.getStore() ) ) {
+        for (ResourceInfo resource : resourceIndex.get(NAME, name)) {
+            if ( clazz.isInstance(resource) && store.equals( resource.getStore() ) ) {
                 return ModificationProxy.create((T)resource, clazz);
             }
         }
@@ -353,12 +405,10 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     
     public <T extends ResourceInfo> List<T> getResourcesByStore(
             StoreInfo store, Class<T> clazz) {
-        List all = lookup(clazz,resources);
         List matches = new ArrayList();
         
-        for (Iterator r = all.iterator(); r.hasNext();) {
-            ResourceInfo resource = (ResourceInfo) r.next();
-            if (store.equals(resource.getStore())) {
+        for (ResourceInfo resource : resourceIndex.get(STORE, store.getId())) {
+            if (clazz.isInstance(resource) && store.equals(resource.getStore())) {
                 matches.add(resource);
             }
         }
@@ -371,17 +421,25 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     //
     public LayerInfo add(LayerInfo layer) {
         resolve(layer);
-        layers.add(layer);
+        synchronized(layers) {
+            layers.add(layer);
+            layerIndex.add(layer);
+        }
         
         return ModificationProxy.create(layer, LayerInfo.class);
     }
     
     public void remove(LayerInfo layer) {
-        layers.remove(unwrap(layer));
+        layer = unwrap(layer);
+        synchronized(layers) {
+            layers.remove(layer);
+            layerIndex.remove(layer);
+        }
     }
     
     public void save(LayerInfo layer) {
         saved(layer);
+        layerIndex.update(unwrap(layer));
     }
     
     public LayerInfo detach(LayerInfo layer) {
@@ -389,17 +447,16 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     }
     
     public LayerInfo getLayer(String id) {
-        for (LayerInfo layer : layers) {
-            if (id.equals(layer.getId())) {
-                return ModificationProxy.create( layer, LayerInfo.class );
-            }
+        LayerInfo layer = layerIndex.get(id);
+        if (layer != null) {
+            return ModificationProxy.create( layer, LayerInfo.class );
         }
 
         return null;
     }
     
     public LayerInfo getLayerByName(String name) {
-        for (LayerInfo layer : layers) {
+        for (LayerInfo layer : layerIndex.get(NAME, name)) {
             if ( name.equals( layer.getName() ) ) {
                 return ModificationProxy.create( layer, LayerInfo.class );
             }
@@ -411,7 +468,7 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     public List<LayerInfo> getLayers(ResourceInfo resource) {
         List<LayerInfo> matches = new ArrayList<LayerInfo>();
         final String id = resource.getId();
-        for (LayerInfo layer : layers) {
+        for (LayerInfo layer : layerIndex.get(RESOURCE, id)) {
             if (id.equals(layer.getResource().getId()) && resource.equals( layer.getResource() ) ) {
                 matches.add( layer );
             }
@@ -795,18 +852,22 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         resolve(style);
         synchronized(styles) {
             styles.add(style);
+            styleIndex.add(style);
         }
         return ModificationProxy.create(style, StyleInfo.class);
     }
 
     public void remove(StyleInfo style) {
+        style = unwrap(style);
         synchronized(styles) {
-            styles.remove(unwrap(style));
+            styles.remove(style);
+            styleIndex.remove(style);
         }
     }
 
     public void save(StyleInfo style) {
         saved( style );
+        styleIndex.update(unwrap(style));
     }
 
     public StyleInfo detach(StyleInfo style) {
@@ -814,19 +875,16 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     }
 
     public StyleInfo getStyle(String id) {
-        for (Iterator s = styles.iterator(); s.hasNext();) {
-            StyleInfo style = (StyleInfo) s.next();
-            if (id.equals(style.getId())) {
-                return ModificationProxy.create(style,StyleInfo.class);
-            }
+        StyleInfo style = styleIndex.get(id);
+        if (style != null) {
+            return ModificationProxy.create(style,StyleInfo.class);
         }
 
         return null;
     }
 
     public StyleInfo getStyleByName(String name) {
-        for (Iterator s = styles.iterator(); s.hasNext();) {
-            StyleInfo style = (StyleInfo) s.next();
+        for (StyleInfo style : styleIndex.get(NAME, name)) {
             if (name.equals(style.getName())) {
                 return ModificationProxy.create(style, StyleInfo.class);
             }
@@ -844,21 +902,13 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         }
         if (workspace == ANY_WORKSPACE) {
             //do an exhaustive search through all workspaces
-            ArrayList<StyleInfo> matches = new ArrayList();
-            for (Iterator i = styles.iterator(); i.hasNext();) {
-                StyleInfo style = (StyleInfo) i.next();
-                if ( name.equals( style.getName() ) ) {
-                    matches.add( style );
-                }
-            }
-            
+            List<StyleInfo> matches = styleIndex.get(NAME, name);
             if ( matches.size() == 1 ) {
                 return ModificationProxy.create( matches.get( 0 ), StyleInfo.class);
             }
         }
         else {
-            for (Iterator i = styles.iterator(); i.hasNext();) {
-                StyleInfo style = (StyleInfo) i.next();
+            for (StyleInfo style : styleIndex.get(NAME, name)) {
                 if (name.equals(style.getName())) {
                     if (style.getWorkspace() != null && style.getWorkspace().equals(workspace) || 
                         style.getWorkspace() == null && workspace == NO_WORKSPACE) {
@@ -918,6 +968,10 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
     }
 
     public void dispose() {
+        if ( storeIndex != null ) storeIndex.clear();
+        if ( resourceIndex != null ) resourceIndex.clear();
+        if ( layerIndex != null ) layerIndex.clear();
+        if ( styleIndex != null ) styleIndex.clear();
         if ( stores != null ) stores.clear();
         if ( defaultStores != null ) defaultStores.clear();
         if ( resources != null ) resources.clear();
@@ -996,6 +1050,83 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
         for ( MapInfo m : maps ) {
             resolve(m);
         }
+        
+        //indexes
+        reindex();
+    }
+    
+    /**
+     * Rebuilds the lookup indexes from the stored objects
+     */
+    protected void reindex() {
+        if ( storeIndex == null ) {
+            storeIndex = newStoreIndex();
+        }
+        storeIndex.reindex((Collection<StoreInfo>) stores.values());
+        if ( resourceIndex == null ) {
+            resourceIndex = newResourceIndex();
+        }
+        resourceIndex.reindex((Collection<ResourceInfo>) resources.values());
+        if ( layerIndex == null ) {
+            layerIndex = newLayerIndex();
+        }
+        layerIndex.reindex(layers);
+        if ( styleIndex == null ) {
+            styleIndex = newStyleIndex();
+        }
+        styleIndex.reindex(styles);
+    }
+    
+    static ISOCatalogIndex<StoreInfo> newStoreIndex() {
+        return new ISOCatalogIndex<StoreInfo>(new Function<StoreInfo, String>() {
+            public String apply(StoreInfo store) {
+                return store.getName();
+            }
+        }, new Function<StoreInfo, String>() {
+            public String apply(StoreInfo store) {
+                return ID_OF.apply(store.getWorkspace());
+            }
+        });
+    }
+    
+    static ISOCatalogIndex<ResourceInfo> newResourceIndex() {
+        return new ISOCatalogIndex<ResourceInfo>(new Function<ResourceInfo, String>() {
+            public String apply(ResourceInfo resource) {
+                return resource.getName();
+            }
+        }, new Function<ResourceInfo, String>() {
+            public String apply(ResourceInfo resource) {
+                return ID_OF.apply(resource.getNamespace());
+            }
+        }, new Function<ResourceInfo, String>() {
+            public String apply(ResourceInfo resource) {
+                return ID_OF.apply(resource.getStore());
+            }
+        });
+    }
+    
+    static ISOCatalogIndex<LayerInfo> newLayerIndex() {
+        return new ISOCatalogIndex<LayerInfo>(new Function<LayerInfo, String>() {
+            public String apply(LayerInfo layer) {
+                return layer.getName();
+            }
+        }, new Function<LayerInfo, String>() {
+            public String apply(LayerInfo layer) {
+                return ID_OF.apply(layer.getResource());
+            }
+        });
+    }
+    
+    static ISOCatalogIndex<StyleInfo> newStyleIndex() {
+        return new ISOCatalogIndex<StyleInfo>(new Function<StyleInfo, String>() {
+            public String apply(StyleInfo style) {
+                return style.getName();
+            }
+        }, new Function<StyleInfo, String>() {
+            public String apply(StyleInfo style) {
+                return ID_OF.apply(style.getWorkspace());
+            }
+        });
     }
 
     public void syncTo(CatalogFacade dao) {
@@ -1012,6 +1143,10 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
             other.maps = maps;
             other.layerGroups = layerGroups;
             other.styles = styles;
+            other.storeIndex = storeIndex;
+            other.resourceIndex = resourceIndex;
+            other.layerIndex = layerIndex;
+            other.styleIndex = styleIndex;
         }
         else {
             //do a manual import
@@ -1145,6 +1280,11 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
 
     public <T extends CatalogInfo> Iterable<T> iterable(final Class<? super T> of,
             final Filter filter, final SortBy[] sortByList) {
+        Iterable<T> indexed = indexedIterable(of, filter, sortByList);
+        if (indexed != null) {
+            return indexed;
+        }
+        
         List<T> all;
 
         T t = null;
@@ -1172,6 +1312,164 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
             throw new IllegalArgumentException("Unknown type: " + of);
         }
 
+        all = sort(all, sortByList);
+
+        return filter(all, filter);
+    }
+    
+    /**
+     * Answers the query from the indexes when the filter contains an indexed predicate, or the
+     * sort is on name, returns null otherwise.
+     * <p>
+     * The index probe returns a superset of the matching objects, the filter is then evaluated
+     * on them only. When sorting by name on an unselective filter, the objects are streamed from
+     * the name sorted snapshot, so that paging only evaluates the filter up to the requested page.
+     * </p>
+     */
+    <T extends CatalogInfo> Iterable<T> indexedIterable(final Class<? super T> of,
+            final Filter filter, final SortBy[] sortByList) {
+        ISOCatalogIndex<? extends CatalogInfo> index = index(of);
+        if (index == null) {
+            return null;
+        }
+        
+        List<? extends CatalogInfo> candidates = probe(of, index, filter);
+        if (candidates != null) {
+            candidates = sort(candidates, sortByList);
+        } else if (sortByList != null && sortByList.length == 1 
+                && "name".equals(sortByList[0].getPropertyName().getPropertyName())) {
+            candidates = index.sorted(NAME);
+            if (SortOrder.DESCENDING.equals(sortByList[0].getSortOrder())) {
+                candidates = Lists.reverse(candidates);
+            }
+        } else {
+            return null;
+        }
+        
+        final Class<T> clazz = (Class<T>) of;
+        Iterable<T> result = Iterables.transform(Iterables.filter(candidates, clazz), 
+                new Function<T, T>() {
+            public T apply(T info) {
+                return ModificationProxy.create(info, clazz);
+            }
+        });
+        
+        return filter(result, filter);
+    }
+    
+    /**
+     * Returns the index of the given type of objects, or null if not indexed
+     */
+    ISOCatalogIndex<? extends CatalogInfo> index(Class<?> of) {
+        if (NamespaceInfo.class.isAssignableFrom(of) || WorkspaceInfo.class.isAssignableFrom(of)) {
+            return null;
+        } else if (StoreInfo.class.isAssignableFrom(of)) {
+            return storeIndex;
+        } else if (ResourceInfo.class.isAssignableFrom(of)) {
+            return resourceIndex;
+        } else if (LayerInfo.class.isAssignableFrom(of)) {
+            return layerIndex;
+        } else if (StyleInfo.class.isAssignableFrom(of)) {
+            return styleIndex;
+        }
+        return null;
+    }
+    
+    /**
+     * Looks for indexed predicates in the filter, returns the candidates of the most selective
+     * one, or null if the filter has none
+     */
+    List<? extends CatalogInfo> probe(Class<?> of, ISOCatalogIndex<? extends CatalogInfo> index, 
+            Filter filter) {
+        if (filter instanceof PropertyIsEqualTo) {
+            PropertyIsEqualTo equal = (PropertyIsEqualTo) filter;
+            String property = propertyName(equal.getExpression1(), equal.getExpression2());
+            Object value = literal(equal.getExpression1(), equal.getExpression2());
+            if (property == null || !(value instanceof String) || !equal.isMatchingCase()) {
+                return null;
+            }
+            
+            if ("id".equals(property)) {
+                CatalogInfo info = index.get((String) value);
+                return info != null ? Collections.singletonList(info) : Collections.<CatalogInfo>emptyList();
+            }
+            int attribute = attribute(of, property);
+            return attribute >= 0 ? index.get(attribute, (String) value) : null;
+        } else if (filter instanceof PropertyIsLike) {
+            // prefix match on name
+            PropertyIsLike like = (PropertyIsLike) filter;
+            if (!(like.getExpression() instanceof PropertyName) || !like.isMatchingCase()
+                    || !"name".equals(((PropertyName) like.getExpression()).getPropertyName())) {
+                return null;
+            }
+            String pattern = like.getLiteral();
+            String wildcard = like.getWildCard();
+            if (pattern == null || wildcard == null || wildcard.isEmpty() 
+                    || !pattern.endsWith(wildcard)) {
+                return null;
+            }
+            String prefix = pattern.substring(0, pattern.length() - wildcard.length());
+            if (prefix.contains(wildcard) || contains(prefix, like.getSingleChar())
+                    || contains(prefix, like.getEscape())) {
+                return null;
+            }
+            return index.withPrefix(NAME, prefix);
+        } else if (filter instanceof And) {
+            List<? extends CatalogInfo> best = null;
+            for (Filter child : ((And) filter).getChildren()) {
+                List<? extends CatalogInfo> candidates = probe(of, index, child);
+                if (candidates != null && (best == null || candidates.size() < best.size())) {
+                    best = candidates;
+                }
+            }
+            return best;
+        }
+        return null;
+    }
+    
+    /**
+     * The index attribute for the given property, or -1 if not indexed
+     */
+    int attribute(Class<?> of, String property) {
+        if ("name".equals(property)) {
+            return NAME;
+        } else if (StoreInfo.class.isAssignableFrom(of) || StyleInfo.class.isAssignableFrom(of)) {
+            return "workspace.id".equals(property) ? OWNER : -1;
+        } else if (ResourceInfo.class.isAssignableFrom(of)) {
+            if ("namespace.id".equals(property)) {
+                return OWNER;
+            } else if ("store.id".equals(property)) {
+                return STORE;
+            }
+        } else if (LayerInfo.class.isAssignableFrom(of)) {
+            return "resource.id".equals(property) ? RESOURCE : -1;
+        }
+        return -1;
+    }
+    
+    String propertyName(Expression e1, Expression e2) {
+        if (e1 instanceof PropertyName && e2 instanceof Literal) {
+            return ((PropertyName) e1).getPropertyName();
+        } else if (e2 instanceof PropertyName && e1 instanceof Literal) {
+            return ((PropertyName) e2).getPropertyName();
+        }
+        return null;
+    }
+    
+    Object literal(Expression e1, Expression e2) {
+        if (e1 instanceof Literal) {
+            return ((Literal) e1).getValue();
+        } else if (e2 instanceof Literal) {
+            return ((Literal) e2).getValue();
+        }
+        return null;
+    }
+    
+    boolean contains(String value, String special) {
+        return special != null && !special.isEmpty() && value.contains(special);
+    }
+    
+    <T> List<T> sort(List<T> all, SortBy[] sortByList) {
         if (null != sortByList) {
             for (int i = sortByList.length - 1; i >=0 ; i--) {
             	SortBy sortBy = sortByList[i];
@@ -1182,7 +1480,10 @@ public class ISODefaultCatalogFacade extends AbstractCatalogFacade implements Ca
 	            all = ordering.sortedCopy(all);
             }
         }
-
+        return all;
+    }
+    
+    <T> Iterable<T> filter(Iterable<T> all, final Filter filter) {
         if (Filter.INCLUDE.equals(filter)) {
             return all;
         }
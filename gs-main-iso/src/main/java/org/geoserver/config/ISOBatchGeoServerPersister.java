@@ -0,0 +1,159 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.Wrapper;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.catalog.event.ISOBatchCatalogListener;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Makes the {@link GeoServerPersister} batch aware.
+ * <p>
+ * The persister writes the current state of an object on each add and post modify event, so
+ * within a batch only one write per object is needed: the post modify events of an object added
+ * in the same batch are dropped, as are all but the last post modify event of an object, and an
+ * object both added and removed in the batch is never written at all. The remaining events are
+ * delivered to the persister in their original order.
+ * </p>
+ */
+public class ISOBatchGeoServerPersister implements ISOBatchCatalogListener, Wrapper {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver.config");
+
+    final GeoServerPersister delegate;
+
+    public ISOBatchGeoServerPersister(GeoServerPersister delegate) {
+        this.delegate = delegate;
+    }
+
+    public void handleEvents(List<CatalogEvent> events) throws CatalogException {
+        CatalogException toThrow = null;
+        for (CatalogEvent event : coalesce(events)) {
+            try {
+                if (event instanceof CatalogAddEvent) {
+                    delegate.handleAddEvent((CatalogAddEvent) event);
+                } else if (event instanceof CatalogRemoveEvent) {
+                    delegate.handleRemoveEvent((CatalogRemoveEvent) event);
+                } else if (event instanceof CatalogPostModifyEvent) {
+                    delegate.handlePostModifyEvent((CatalogPostModifyEvent) event);
+                }
+            } catch (CatalogException e) {
+                // keep on persisting the other objects
+                if (toThrow == null) {
+                    toThrow = e;
+                } else {
+                    LOGGER.log(Level.WARNING, "Failed to persist catalog change", e);
+                }
+            }
+        }
+        if (toThrow != null) {
+            throw toThrow;
+        }
+    }
+
+    /**
+     * Returns the events that still need to be persisted, in their original order
+     */
+    static List<CatalogEvent> coalesce(List<CatalogEvent> events) {
+        List<CatalogEvent> result = new ArrayList<CatalogEvent>(events.size());
+        Map<String, Integer> added = new HashMap<String, Integer>();
+        Map<String, Integer> modified = new HashMap<String, Integer>();
+        for (CatalogEvent event : events) {
+            CatalogInfo source = event.getSource();
+            String id = source == null ? null : source.getId();
+            if (id == null) {
+                result.add(event);
+            } else if (event instanceof CatalogAddEvent) {
+                added.put(id, result.size());
+                result.add(event);
+            } else if (event instanceof CatalogPostModifyEvent) {
+                if (added.containsKey(id)) {
+                    // the add writes the object as it is by the end of the batch
+                    continue;
+                }
+                Integer previous = modified.put(id, result.size());
+                if (previous != null) {
+                    result.set(previous, null);
+                }
+                result.add(event);
+            } else if (event instanceof CatalogRemoveEvent) {
+                Integer previous = modified.remove(id);
+                if (previous != null) {
+                    result.set(previous, null);
+                }
+                Integer add = added.remove(id);
+                if (add != null) {
+                    // never written, nothing to remove
+                    result.set(add, null);
+                } else {
+                    result.add(event);
+                }
+            } else {
+                result.add(event);
+            }
+        }
+
+        List<CatalogEvent> coalesced = new ArrayList<CatalogEvent>(result.size());
+        for (CatalogEvent event : result) {
+            if (event != null) {
+                coalesced.add(event);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * Writes are expected to be done when the batch ends
+     */
+    public boolean isAsynchronous() {
+        return false;
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        delegate.handleAddEvent(event);
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        delegate.handleRemoveEvent(event);
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        delegate.handleModifyEvent(event);
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        delegate.handlePostModifyEvent(event);
+    }
+
+    public void reloaded() {
+        delegate.reloaded();
+    }
+
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(delegate);
+    }
+
+    public <T> T unwrap(Class<T> iface) throws IllegalArgumentException {
+        if (iface.isInstance(delegate)) {
+            return iface.cast(delegate);
+        }
+        throw new IllegalArgumentException("Not a wrapper for " + iface.getName());
+    }
+}
@@ -0,0 +1,199 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.WMSStoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.ResolvingProxy;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.Resources;
+
+/**
+ * Parses the catalog configuration files on behalf of {@link ISOGeoServerLoader}.
+ * <p>
+ * By default each file is parsed when the loader asks for it, with the loader persister. When
+ * more than one thread is requested,
+ * {@link #prefetch(GeoServerResourceLoader, XStreamPersisterFactory, int)} schedules the parsing
+ * of all the files of a 2.x style data directory on a fork join pool, each worker thread using its
+ * own persister created by the same factory, and the loader then picks up the parsed objects. The
+ * worker persisters are not bound to the catalog, which the loader keeps changing meanwhile: the
+ * references to other catalog objects are left as {@link ResolvingProxy} instances, resolved by
+ * the catalog when the objects are added to it. Either way the loader adds the objects to the catalog in the same order and with the
+ * same error handling.
+ * </p>
+ * <p>
+ * When a {@link ISOCatalogSnapshot} is set, the files it holds an up to date entry for are not
+ * parsed, and the loaded objects are tracked so that the snapshot can be written back.
+ * </p>
+ */
+class ISOCatalogFileParser {
+
+    final XStreamPersister xp;
+
+    /**
+     * The snapshot providing the objects of the unchanged files, or null
+     */
+    ISOCatalogSnapshot snapshot;
+
+    ForkJoinPool pool;
+
+    ThreadLocal<XStreamPersister> persisters;
+
+    /**
+     * The scheduled parses, by file path
+     */
+    Map<String, Future<Object>> parsed = new ConcurrentHashMap<String, Future<Object>>();
+
+    ISOCatalogFileParser(XStreamPersister xp) {
+        this.xp = xp;
+    }
+
+    /**
+     * Parses the file, returning the object prefetched for it if any
+     */
+    <T> T parse(Resource f, Class<T> clazz) throws Exception {
+        Future<Object> future = parsed.remove(f.path());
+        if (future != null) {
+            try {
+                Object object = future.get();
+                if (clazz.isInstance(object)) {
+                    return clazz.cast(object);
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return read(xp, f, clazz);
+    }
+
+    <T> T read(XStreamPersister persister, Resource f, Class<T> clazz) throws IOException {
+        if (snapshot != null) {
+            T cached = snapshot.lookup(f, clazz);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        try (InputStream in = f.in()) {
+            return persister.load(in, clazz);
+        }
+    }
+
+    /**
+     * Records a catalog object loaded from the specified file
+     */
+    void track(Resource f, CatalogInfo info) {
+        if (snapshot != null) {
+            snapshot.track(f, info);
+        }
+    }
+
+    /**
+     * Schedules the parsing of all the catalog files, in the order the loader reads them
+     */
+    void prefetch(GeoServerResourceLoader resourceLoader, final XStreamPersisterFactory factory,
+            int threads) {
+        pool = new ForkJoinPool(threads);
+        persisters = new ThreadLocal<XStreamPersister>() {
+            @Override
+            protected XStreamPersister initialValue() {
+                XStreamPersister persister = factory.createXMLPersister();
+                persister.setUnwrapNulls(false);
+                return persister;
+            }
+        };
+
+        schedule(resourceLoader.get("styles"), StyleInfo.class);
+        Resource workspaces = resourceLoader.get("workspaces");
+        if (Resources.exists(workspaces)) {
+            List<Resource> workspaceDirs = Resources.list(workspaces,
+                    Resources.DirectoryFilter.INSTANCE);
+            for (Resource wsd : workspaceDirs) {
+                schedule(wsd.get("workspace.xml"), WorkspaceInfo.class);
+                schedule(wsd.get("namespace.xml"), NamespaceInfo.class);
+                schedule(wsd.get("styles"), StyleInfo.class);
+            }
+            for (Resource wsd : workspaceDirs) {
+                for (Resource sd : Resources.list(wsd, Resources.DirectoryFilter.INSTANCE)) {
+                    if (schedule(sd.get("datastore.xml"), DataStoreInfo.class)) {
+                        scheduleResources(sd, "featuretype.xml", FeatureTypeInfo.class);
+                    } else if (schedule(sd.get("coveragestore.xml"), CoverageStoreInfo.class)) {
+                        scheduleResources(sd, "coverage.xml", CoverageInfo.class);
+                    } else if (schedule(sd.get("wmsstore.xml"), WMSStoreInfo.class)) {
+                        scheduleResources(sd, "wmslayer.xml", WMSLayerInfo.class);
+                    }
+                }
+                schedule(wsd.get("layergroups"), LayerGroupInfo.class);
+            }
+        }
+        schedule(resourceLoader.get("layergroups"), LayerGroupInfo.class);
+    }
+
+    void scheduleResources(Resource sd, String resourceFile, Class<?> clazz) {
+        for (Resource rd : Resources.list(sd, Resources.DirectoryFilter.INSTANCE)) {
+            schedule(rd.get(resourceFile), clazz);
+            schedule(rd.get("layer.xml"), LayerInfo.class);
+        }
+    }
+
+    /**
+     * Schedules the parsing of a file, or of the xml files of a directory, returns false if
+     * there is nothing to parse
+     */
+    boolean schedule(Resource f, final Class<?> clazz) {
+        if (f == null || !Resources.exists(f)) {
+            return false;
+        }
+        List<Resource> files = new ArrayList<Resource>();
+        if (f.getType() == Resource.Type.DIRECTORY) {
+            files.addAll(Resources.list(f, new Resources.ExtensionFilter("XML")));
+        } else {
+            files.add(f);
+        }
+        for (final Resource file : files) {
+            parsed.put(file.path(), pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return read(persisters.get(), file, clazz);
+                }
+            }));
+        }
+        return true;
+    }
+
+    /**
+     * Stops the workers, files not picked up by the loader are no longer of interest
+     */
+    void dispose() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        parsed.clear();
+    }
+}
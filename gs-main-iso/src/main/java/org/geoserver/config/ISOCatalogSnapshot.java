@@ -0,0 +1,508 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.WMSStoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.catalog.event.ISOBatchCatalogListener;
+import org.geoserver.catalog.impl.ModificationProxy;
+import org.geoserver.catalog.impl.ResolvingProxy;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.Resources;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Binary snapshot of the catalog configuration files, used to skip the XML parsing on startup.
+ * <p>
+ * Each entry holds the path of a configuration file, the modification time and length the file
+ * had when the entry was written, and the catalog object serialized with Java serialization.
+ * References to other catalog objects are stored as ids and come back as {@link ResolvingProxy}
+ * instances, exactly like the XML persister does, so each entry can be used or re-parsed
+ * independently of the others. On startup the whole snapshot is read at once, and an entry is
+ * used only if its file fingerprint still matches, the file is parsed otherwise.
+ * </p>
+ * <p>
+ * Stores are never part of the snapshot: once loaded they hold their connection parameters with
+ * the passwords decrypted, so they are always parsed, and the persister password encryption is
+ * the only one ever written to disk. When reading, only the classes of the catalog objects and of
+ * the values they hold are accepted, see {@link SnapshotInputStream}.
+ * </p>
+ * <p>
+ * The file starts with a magic number, a format version and the CRC32 of the compressed entries,
+ * a snapshot that cannot be validated is ignored. Once the catalog is loaded the snapshot listens
+ * to the catalog changes and is rewritten in background, shortly after the last change. Objects
+ * added after startup are not in the snapshot until the next startup parses them.
+ * </p>
+ */
+class ISOCatalogSnapshot implements ISOBatchCatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver");
+
+    /**
+     * Enables the snapshot, used when loading the catalog on startup
+     */
+    static final boolean ENABLED = Boolean.getBoolean("org.geoserver.iso.catalogSnapshot");
+
+    /**
+     * Milliseconds between a catalog change and the rewrite of the snapshot
+     */
+    static final long WRITE_DELAY = Long.getLong("org.geoserver.iso.catalogSnapshot.writeDelay",
+            5000);
+
+    static final String FILE_NAME = "catalog_iso.snapshot";
+
+    static final int MAGIC = 0x47534953;
+
+    static final int VERSION = 2;
+
+    /**
+     * Reference types, subtypes before their parents
+     */
+    static final Class<?>[] REFERENCE_TYPES = { LayerGroupInfo.class, LayerInfo.class,
+            StyleInfo.class, FeatureTypeInfo.class, CoverageInfo.class, WMSLayerInfo.class,
+            ResourceInfo.class, DataStoreInfo.class, CoverageStoreInfo.class, WMSStoreInfo.class,
+            StoreInfo.class, NamespaceInfo.class, WorkspaceInfo.class };
+
+    final Resource file;
+
+    /**
+     * The entries read from the snapshot, by file path
+     */
+    final Map<String, Entry> entries;
+
+    /**
+     * The loaded catalog objects along with their file, by object id
+     */
+    final Map<String, Tracked> tracked = new ConcurrentHashMap<String, Tracked>();
+
+    final AtomicInteger hits = new AtomicInteger();
+
+    final AtomicInteger misses = new AtomicInteger();
+
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    ScheduledExecutorService executor;
+
+    ISOCatalogSnapshot(Resource file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the snapshot of the data directory, returns an empty snapshot if missing or invalid
+     */
+    static ISOCatalogSnapshot read(GeoServerResourceLoader resourceLoader) {
+        Resource file = resourceLoader.get(FILE_NAME);
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (Resources.exists(file)) {
+            long start = System.currentTimeMillis();
+            try {
+                entries = readEntries(file);
+                LOGGER.info("Read " + entries.size() + " entries from the catalog snapshot in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid catalog snapshot " + file.path(), e);
+            }
+        }
+        return new ISOCatalogSnapshot(file, entries);
+    }
+
+    static Map<String, Entry> readEntries(Resource file) throws IOException {
+        byte[] compressed;
+        long crc;
+        try (DataInputStream in = new DataInputStream(file.in())) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a catalog snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported catalog snapshot version " + version);
+            }
+            crc = in.readLong();
+            compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(compressed);
+        if (checksum.getValue() != crc) {
+            throw new IOException("Catalog snapshot checksum mismatch");
+        }
+
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(compressed)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                byte[] object = new byte[in.readInt()];
+                in.readFully(object);
+                entries.put(path, new Entry(lastModified, length, object));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the object stored for the file, or null if there is none or the file changed since
+     */
+    <T> T lookup(Resource f, Class<T> clazz) {
+        if (StoreInfo.class.isAssignableFrom(clazz)) {
+            return null;
+        }
+        Entry entry = entries.get(f.path());
+        if (entry == null || entry.lastModified != f.lastmodified()
+                || entry.length != length(f)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try (SnapshotInputStream in = new SnapshotInputStream(new ByteArrayInputStream(
+                entry.object))) {
+            Object object = in.readObject();
+            if (clazz.isInstance(object)) {
+                hits.incrementAndGet();
+                return clazz.cast(object);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to read " + f.path() + " from the catalog snapshot", e);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records a catalog object loaded from the specified file
+     */
+    void track(Resource f, CatalogInfo info) {
+        // stores hold their connection passwords in clear once loaded
+        if (info.getId() != null && !(info instanceof StoreInfo)) {
+            tracked.put(info.getId(), new Tracked(f, ModificationProxy.unwrap(info)));
+        }
+    }
+
+    /**
+     * Starts listening to the loaded catalog and schedules the first write
+     */
+    void attach(Catalog catalog) {
+        LOGGER.info("Catalog snapshot provided " + hits.get() + " objects, " + misses.get()
+                + " files were parsed");
+        entries.clear();
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Catalog snapshot writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        catalog.addListener(this);
+        schedule(0);
+    }
+
+    void schedule(long delay) {
+        if (executor != null && scheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    try {
+                        write();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to write the catalog snapshot", e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the tracked objects whose file still exists
+     */
+    synchronized void write() throws IOException {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = 0;
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (Tracked t : tracked.values()) {
+            if (!Resources.exists(t.file)) {
+                continue;
+            }
+            // fingerprint before serializing, if the object changes in between the file
+            // will be written again and the entry will not match
+            long lastModified = t.file.lastmodified();
+            long length = length(t.file);
+            bytes.reset();
+            try (SnapshotOutputStream out = new SnapshotOutputStream(bytes, t.info)) {
+                out.writeObject(t.info);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not add " + t.file.path()
+                        + " to the catalog snapshot", e);
+                continue;
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 64);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeUTF(t.file.path());
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+            records.add(record.toByteArray());
+            count++;
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(compressed))) {
+            out.writeInt(count);
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(compressed.toByteArray());
+
+        try (DataOutputStream out = new DataOutputStream(file.out())) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum.getValue());
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+        }
+        LOGGER.fine("Wrote " + count + " entries to the catalog snapshot in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static long length(Resource f) {
+        File file = f.file();
+        return file != null ? file.length() : -1;
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // the file of new objects is known only once parsed on the next startup
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        if (tracked.remove(event.getSource().getId()) != null) {
+            schedule(WRITE_DELAY);
+        }
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        if (tracked.containsKey(event.getSource().getId())) {
+            schedule(WRITE_DELAY);
+        }
+    }
+
+    public void reloaded() {
+    }
+
+    public void handleEvents(List<CatalogEvent> events) throws CatalogException {
+        boolean changed = false;
+        for (CatalogEvent event : events) {
+            if (event instanceof CatalogRemoveEvent) {
+                changed |= tracked.remove(event.getSource().getId()) != null;
+            } else if (event instanceof CatalogPostModifyEvent) {
+                changed |= tracked.containsKey(event.getSource().getId());
+            }
+        }
+        if (changed) {
+            schedule(WRITE_DELAY);
+        }
+    }
+
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    /**
+     * A snapshot entry, the file fingerprint and the serialized object
+     */
+    static class Entry {
+        final long lastModified;
+
+        final long length;
+
+        final byte[] object;
+
+        Entry(long lastModified, long length, byte[] object) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.object = object;
+        }
+    }
+
+    static class Tracked {
+        final Resource file;
+
+        final CatalogInfo info;
+
+        Tracked(Resource file, CatalogInfo info) {
+            this.file = file;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Serialized form of a reference to another catalog object
+     */
+    static class Reference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String id;
+
+        final Class<?> type;
+
+        Reference(String id, Class<?> type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Writes a catalog object replacing the other catalog objects it refers to with references
+     */
+    static class SnapshotOutputStream extends ObjectOutputStream {
+        final Object root;
+
+        SnapshotOutputStream(OutputStream out, Object root) throws IOException {
+            super(out);
+            this.root = root;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj != root && obj instanceof CatalogInfo) {
+                for (Class<?> type : REFERENCE_TYPES) {
+                    if (type.isInstance(obj)) {
+                        return new Reference(((CatalogInfo) obj).getId(), type);
+                    }
+                }
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Reads a catalog object turning the references into {@link ResolvingProxy} instances. Only the
+     * catalog classes and the value classes they use are resolved, anything else makes the entry
+     * invalid and the file is parsed instead.
+     */
+    static class SnapshotInputStream extends ObjectInputStream {
+
+        static final String[] ALLOWED_PACKAGES = { "org.geoserver.catalog.",
+                "org.geotools.referencing.", "org.geotools.metadata.", "org.geotools.geometry.",
+                "org.geotools.measure.", "org.geotools.util.", "org.opengis.", "javax.measure.",
+                "java.util.", "java.math.", "java.net.URI", "java.net.URL" };
+
+        static final Class<?>[] ALLOWED_CLASSES = { Reference.class, Object.class, String.class,
+                Boolean.class, Character.class, Number.class, Byte.class, Short.class,
+                Integer.class, Long.class, Float.class, Double.class, Enum.class };
+
+        SnapshotInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+                ClassNotFoundException {
+            String name = desc.getName();
+            // array class names look like [[Ljava.lang.String; or [D
+            String component = name.replaceFirst("^\\[+L?", "").replaceFirst(";$", "");
+            if (!isAllowed(name, component)) {
+                throw new InvalidClassException(name, "Not allowed in a catalog snapshot");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException,
+                ClassNotFoundException {
+            throw new InvalidClassException("Proxy classes are not allowed in a catalog snapshot");
+        }
+
+        static boolean isAllowed(String name, String component) {
+            if (name.startsWith("[") && component.length() == 1) {
+                // array of primitives
+                return true;
+            }
+            for (Class<?> allowed : ALLOWED_CLASSES) {
+                if (allowed.getName().equals(component)) {
+                    return true;
+                }
+            }
+            for (String pkg : ALLOWED_PACKAGES) {
+                if (component.startsWith(pkg)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof Reference) {
+                Reference ref = (Reference) obj;
+                return ResolvingProxy.create(ref.id, ref.type);
+            }
+            return obj;
+        }
+    }
+}
@@ -16,11 +16,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geoserver.catalog.Catalog;
-import org.geoserver.catalog.CatalogFactory;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.CoverageStoreInfo;
 import org.geoserver.catalog.DataStoreInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ISOResourcePool;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.NamespaceInfo;
@@ -60,12 +60,66 @@ import org.springframework.context.ApplicationContext;
  */
 public abstract class ISOGeoServerLoader extends GeoServerLoader {
 
+    /**
+     * Number of threads used to connect to the enabled data stores on startup, when zero or
+     * negative they are connected to one at a time while loading
+     */
+    static final int WARM_UP_THREADS = Integer.getInteger("org.geoserver.iso.dataStoreWarmUpThreads", 0);
+
+    /**
+     * Number of threads used to parse the catalog files on startup, by default one, parsing each
+     * file as it is loaded
+     */
+    static final int LOAD_THREADS = Integer.getInteger("org.geoserver.iso.catalogLoadThreads", 1);
+
+    /**
+     * When true a reload of a populated catalog applies only the differences with the files on
+     * disk, instead of replacing the whole catalog contents
+     */
+    static final boolean INCREMENTAL_RELOAD = Boolean.parseBoolean(System.getProperty(
+            "org.geoserver.iso.incrementalReload", "true"));
+
+    /**
+     * The catalog snapshot used by the last parallel load, attached to the catalog once loaded
+     */
+    ISOCatalogSnapshot snapshot;
+
     public ISOGeoServerLoader( GeoServerResourceLoader resourceLoader ) {
         super(resourceLoader);
     }
     
+    /**
+     * Reloads a populated catalog incrementally, before anything gets disposed: the default
+     * reload disposes the catalog and its resource pool first, leaving no cache to preserve.
+     * The rest of the configuration is reloaded as usual.
+     */
+    @Override
+    public void reload() throws Exception {
+        Catalog catalog = geoserver.getCatalog();
+        if ( catalog instanceof Wrapper ) {
+            catalog = ((Wrapper) catalog).unwrap(Catalog.class);
+        }
+        if ( !INCREMENTAL_RELOAD || !isPopulated( catalog ) ) {
+            super.reload();
+            return;
+        }
+        
+        XStreamPersister xp = xpf.createXMLPersister();
+        xp.setCatalog( catalog );
+        // ends up in reloadCatalog, and attaches back the persister
+        loadCatalog( catalog, xp );
+        
+        geoserver.getFacade().dispose();
+        loadGeoServer( geoserver, xp );
+    }
+    
     @Override
     protected void readCatalog(Catalog catalog, XStreamPersister xp) throws Exception {
+        if ( INCREMENTAL_RELOAD && isPopulated( catalog ) ) {
+            reloadCatalog( (ISOCatalogImpl) catalog, xp );
+            return;
+        }
+        
         // we are going to synch up the catalogs and need to preserve listeners,
         // but these two fellas are attached to the new catalog as well
         catalog.removeListeners(ResourcePool.CacheClearingListener.class);
@@ -91,21 +145,91 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
         for (CatalogListener listener : listeners) {
             catalog.addListener(listener);
         }
+        
+        // keep the snapshot up to date from now on
+        if ( snapshot != null ) {
+            snapshot.attach(catalog);
+            snapshot = null;
+        }
+    }
+    
+    /**
+     * Reloads a populated catalog applying only the differences with the files on disk, so that
+     * the listeners, including the resource pool cache clearing one, see only the actual changes
+     */
+    void reloadCatalog(ISOCatalogImpl catalog, XStreamPersister xp) throws Exception {
+        // don't write back what we are reading
+        catalog.removeListeners(GeoServerPersister.class);
+        
+        Resource f = resourceLoader.get( "catalog_iso.xml" );
+        ISOCatalogImpl catalog2;
+        if ( !Resources.exists(f) ) {
+            // a temporary catalog, no need to connect to its stores
+            catalog2 = (ISOCatalogImpl) readCatalog( xp, false );
+        } else {
+            catalog2 = (ISOCatalogImpl) readLegacyCatalog( f, xp );
+        }
+        // the snapshot, if any, was attached on startup and keeps tracking the live objects
+        snapshot = null;
+        
+        try {
+            catalog.syncIncrementally( catalog2 );
+        } finally {
+            if ( catalog2.getResourcePool() != catalog.getResourcePool() ) {
+                catalog2.getResourcePool().dispose();
+            }
+            // the rest of the configuration must resolve against the live catalog
+            xp.setCatalog( catalog );
+        }
+    }
+    
+    boolean isPopulated(Catalog catalog) {
+        return catalog instanceof ISOCatalogImpl
+            && ( !catalog.getWorkspaces().isEmpty() || !catalog.getStyles().isEmpty() );
     }
     
     /**
      * Reads the catalog from disk.
      */
     Catalog readCatalog( XStreamPersister xp ) throws Exception {
+        return readCatalog( xp, true );
+    }
+    
+    /**
+     * Reads the catalog from disk, connecting to the enabled data stores to disable the failing
+     * ones only if <code>connect</code> is true
+     */
+    Catalog readCatalog( XStreamPersister xp, boolean connect ) throws Exception {
     	ISOCatalogImpl catalog = new ISOCatalogImpl();
         catalog.setResourceLoader(resourceLoader);
         xp.setCatalog( catalog );
         xp.setUnwrapNulls(false);
         
-        CatalogFactory factory = catalog.getFactory();
+        ISOCatalogFileParser parser = new ISOCatalogFileParser( xp );
+        if ( ISOCatalogSnapshot.ENABLED ) {
+            parser.snapshot = ISOCatalogSnapshot.read( resourceLoader );
+        }
+        try {
+            if ( LOAD_THREADS > 1 ) {
+                parser.prefetch( resourceLoader, xpf, LOAD_THREADS );
+            }
+            readCatalogFiles( catalog, xp, parser, connect );
+        } finally {
+            parser.dispose();
+        }
+        snapshot = parser.snapshot;
+        return catalog;
+    }
+    
+    void readCatalogFiles( ISOCatalogImpl catalog, XStreamPersister xp, ISOCatalogFileParser parser,
+        boolean connect ) throws Exception {
+        long start = System.currentTimeMillis();
+        long phase = start;
+        List<DataStoreInfo> enabledStores = new ArrayList<DataStoreInfo>();
        
         //global styles
-        loadStyles(resourceLoader.get( "styles" ), catalog, xp);
+        loadStyles(resourceLoader.get( "styles" ), catalog, parser);
+        phase = logPhase("global styles", phase);
 
         //workspaces, stores, and resources
         Resource workspaces = resourceLoader.get( "workspaces" );
@@ -115,7 +239,7 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
             WorkspaceInfo defaultWorkspace = null;
             if (Resources.exists(dws)) {
                 try {
-                    defaultWorkspace = depersist(xp, dws, WorkspaceInfo.class);
+                    defaultWorkspace = parser.parse(dws, WorkspaceInfo.class);
                     LOGGER.info("Loaded default workspace " + defaultWorkspace.getName());
                 }
                 catch( Exception e ) {
@@ -134,8 +258,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                 
                 WorkspaceInfo ws = null;
                 try {
-                    ws = depersist( xp, f, WorkspaceInfo.class );
+                    ws = parser.parse(f, WorkspaceInfo.class);
                     catalog.add( ws );    
+                    parser.track( f, ws );
                 }
                 catch( Exception e ) {
                     LOGGER.log( Level.WARNING, "Failed to load workspace '" + wsd.name() + "'" , e );
@@ -149,8 +274,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                 NamespaceInfo ns = null; 
                 if ( Resources.exists(nsf) ) {
                     try {
-                        ns = depersist( xp, nsf, NamespaceInfo.class );
+                        ns = parser.parse(nsf, NamespaceInfo.class);
                         catalog.add( ns );
+                        parser.track( nsf, ns );
                     }
                     catch( Exception e ) {
                         LOGGER.log( Level.WARNING, "Failed to load namespace for '" + wsd.name() + "'" , e );
@@ -185,9 +311,10 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                 //load the styles for the workspace
                 Resource styles = wsd.get("styles");
                 if (styles != null) {
-                    loadStyles(styles, catalog, xp);
+                    loadStyles(styles, catalog, parser);
                 }
             }
+            phase = logPhase("workspaces, namespaces and workspace styles", phase);
             
             for ( Resource wsd : Resources.list(workspaces, Resources.DirectoryFilter.INSTANCE )) {
             
@@ -198,12 +325,17 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                         //load as a datastore
                         DataStoreInfo ds = null;
                         try {    
-                            ds = depersist( xp, f, DataStoreInfo.class );
+                            ds = parser.parse(f, DataStoreInfo.class);
                             catalog.add( ds );
+                            parser.track( f, ds );
                             
                             LOGGER.info( "Loaded data store '" + ds.getName() +"'");
                             
-                            if (ds.isEnabled()) {
+                            // the stores of a temporary catalog are never used
+                            if (connect && ds.isEnabled() && WARM_UP_THREADS > 0) {
+                                // connected to in parallel once all stores are loaded
+                                enabledStores.add(ds);
+                            } else if (connect && ds.isEnabled()) {
                                 //connect to the datastore to determine if we should disable it
                                 try {
                                     ds.getDataStore(null);
@@ -228,8 +360,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                             if( Resources.exists(f) ) {
                                 FeatureTypeInfo ft = null;
                                 try {
-                                    ft = depersist(xp,f,FeatureTypeInfo.class);
+                                    ft = parser.parse(f, FeatureTypeInfo.class);
                                     catalog.add(ft);
+                                    parser.track( f, ft );
                                 }
                                 catch( Exception e ) {
                                     LOGGER.log( Level.WARNING, "Failed to load feature type '" + ftd.name() +"'", e);
@@ -241,8 +374,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                                 f = ftd.get("layer.xml" );
                                 if ( Resources.exists(f) ) {
                                     try {
-                                        LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                        LayerInfo l = parser.parse(f, LayerInfo.class);
                                         catalog.add( l );
+                                        parser.track( f, l );
                                         
                                         LOGGER.info( "Loaded layer '" + l.getName() + "'" );
                                     }
@@ -261,8 +395,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                         if ( Resources.exists(f) ) {
                             CoverageStoreInfo cs = null;
                             try {
-                                cs = depersist( xp, f, CoverageStoreInfo.class );
+                                cs = parser.parse(f, CoverageStoreInfo.class);
                                 catalog.add( cs );
+                                parser.track( f, cs );
                             
                                 LOGGER.info( "Loaded coverage store '" + cs.getName() +"'");
                             }
@@ -277,8 +412,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                                 if( Resources.exists(f) ) {
                                     CoverageInfo c = null;
                                     try {
-                                        c = depersist(xp,f,CoverageInfo.class);
+                                        c = parser.parse(f, CoverageInfo.class);
                                         catalog.add( c );
+                                        parser.track( f, c );
                                         
                                         LOGGER.info( "Loaded coverage '" + cs.getName() +"'");
                                     }
@@ -290,8 +426,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                                     f = cd.get("layer.xml" );
                                     if ( Resources.exists(f) ) {
                                         try {
-                                            LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                            LayerInfo l = parser.parse(f, LayerInfo.class);
                                             catalog.add( l );
+                                            parser.track( f, l );
                                             
                                             LOGGER.info( "Loaded layer '" + l.getName() + "'" );
                                         }
@@ -309,8 +446,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                             if(Resources.exists(f)) {
                                 WMSStoreInfo wms = null;
                                 try {
-                                    wms = depersist( xp, f, WMSStoreInfo.class );
+                                    wms = parser.parse(f, WMSStoreInfo.class);
                                     catalog.add( wms );
+                                    parser.track( f, wms );
                                 
                                     LOGGER.info( "Loaded wmsstore '" + wms.getName() +"'");
                                 } catch( Exception e ) {
@@ -324,8 +462,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                                     if( Resources.exists(f) ) {
                                         WMSLayerInfo wl = null;
                                         try {
-                                            wl = depersist(xp,f,WMSLayerInfo.class);
+                                            wl = parser.parse(f, WMSLayerInfo.class);
                                             catalog.add( wl );
+                                            parser.track( f, wl );
                                             
                                             LOGGER.info( "Loaded wms layer'" + wl.getName() +"'");
                                         }
@@ -337,8 +476,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                                         f =  cd.get("layer.xml" );
                                         if ( Resources.exists(f) ) {
                                             try {
-                                                LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                                LayerInfo l = parser.parse(f, LayerInfo.class);
                                                 catalog.add( l );
+                                                parser.track( f, l );
                                                 
                                                 LOGGER.info( "Loaded layer '" + l.getName() + "'" );
                                             }
@@ -362,9 +502,10 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                 //load hte layer groups for this workspace
                 Resource layergroups = wsd.get("layergroups");
                 if (layergroups != null) {
-                    loadLayerGroups(layergroups, catalog, xp);
+                    loadLayerGroups(layergroups, catalog, parser);
                 }
             }
+            phase = logPhase("stores, resources, layers and workspace layer groups", phase);
         }
         else {
             LOGGER.warning( "No 'workspaces' directory found, unable to load any stores." );
@@ -375,11 +516,36 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
         //layergroups
         Resource layergroups = resourceLoader.get( "layergroups" );
         if ( layergroups != null ) {
-           loadLayerGroups(layergroups, catalog, xp);
+           loadLayerGroups(layergroups, catalog, parser);
+        }
+        phase = logPhase("layer groups", phase);
+        
+        //connect to the enabled stores, disabling the ones failing
+        if (!enabledStores.isEmpty()) {
+            Map<DataStoreInfo, Throwable> errors = ISOResourcePool.warmUpDataStores(enabledStores, 
+                    WARM_UP_THREADS);
+            for (Map.Entry<DataStoreInfo, Throwable> error : errors.entrySet()) {
+                DataStoreInfo ds = error.getKey();
+                LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
+                LOGGER.log( Level.INFO, "", error.getValue() );
+                
+                ds.setError(error.getValue());
+                ds.setEnabled(false);
+            }
+            phase = logPhase("data store connections", phase);
         }
+        
         xp.setUnwrapNulls(true);
         catalog.resolve();
-        return catalog;
+        logPhase("catalog resolution", phase);
+        LOGGER.info("Catalog loaded with " + LOAD_THREADS + " threads in " 
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+    
+    long logPhase(String phase, long start) {
+        long now = System.currentTimeMillis();
+        LOGGER.info("Loaded " + phase + " in " + (now - start) + " ms");
+        return now;
     }
     
     /**
@@ -470,7 +636,7 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
         }
     }
 
-    void loadStyles(Resource styles, Catalog catalog, XStreamPersister xp) {
+    void loadStyles(Resource styles, Catalog catalog, ISOCatalogFileParser parser) {
         for ( Resource sf : Resources.list(styles, new Resources.ExtensionFilter("XML") ) ) {
             try {
                 //handle the .xml.xml case
@@ -478,8 +644,9 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
                     continue;
                 }
                 
-                StyleInfo s = depersist( xp, sf, StyleInfo.class );
+                StyleInfo s = parser.parse( sf, StyleInfo.class );
                 catalog.add( s );
+                parser.track( sf, s );
                 
                 LOGGER.info( "Loaded style '" + s.getName() + "'" );
             }
@@ -489,15 +656,16 @@ public abstract class ISOGeoServerLoader extends GeoServerLoader {
         }
     }
 
-    void loadLayerGroups(Resource layergroups, Catalog catalog, XStreamPersister xp) {
+    void loadLayerGroups(Resource layergroups, Catalog catalog, ISOCatalogFileParser parser) {
         for ( Resource lgf : Resources.list( layergroups, new Resources.ExtensionFilter( "XML" ) ) ) {
             try {
-                LayerGroupInfo lg = depersist( xp, lgf, LayerGroupInfo.class );
+                LayerGroupInfo lg = parser.parse( lgf, LayerGroupInfo.class );
                 if(lg.getLayers() == null || lg.getLayers().size() == 0) {
                     LOGGER.warning("Skipping empty layer group '" + lg.getName() + "', it is invalid");
                     continue;
                 }
                 catalog.add( lg );
+                parser.track( lgf, lg );
                 
                 LOGGER.info( "Loaded layer group '" + lg.getName() + "'" );    
             }
@@ -6,7 +6,10 @@
 package org.geoserver.feature.retype;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.geotools.data.FeatureReader;
 import org.geotools.data.FeatureWriter;
@@ -23,6 +26,9 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.identity.FeatureId;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * FeatureCollection with "casts" features from on feature type to another.
  * 
@@ -54,20 +60,18 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
 
     static SimpleFeature retype(SimpleFeature source, ISOSimpleFeatureBuilder builder)
             throws IllegalAttributeException {
-        SimpleFeatureType target = builder.getFeatureType();
-        for (int i = 0; i < target.getAttributeCount(); i++) {
-            AttributeDescriptor attributeType = target.getDescriptor(i);
-            Object value = null;
-
-            if (source.getFeatureType().getDescriptor(attributeType.getName()) != null) {
-                value = source.getAttribute(attributeType.getName());
-            }
+        RetypePlan plan = RetypePlan.get(null, source.getFeatureType(), builder.getFeatureType());
+        return retype(source, builder, plan);
+    }
 
-            builder.add(value);
+    static SimpleFeature retype(SimpleFeature source, ISOSimpleFeatureBuilder builder,
+            RetypePlan plan) throws IllegalAttributeException {
+        int[] indexes = plan.indexes;
+        for (int i = 0; i < indexes.length; i++) {
+            builder.add(indexes[i] < 0 ? null : source.getAttribute(indexes[i]));
         }
 
-        FeatureId id = reTypeId(source.getIdentifier(), source.getFeatureType(), target);
-        SimpleFeature retyped = builder.buildFeature(id.getID());
+        SimpleFeature retyped = builder.buildFeature(plan.retypeId(source.getID()));
         retyped.getUserData().putAll(source.getUserData());
         return  retyped;
     }
@@ -96,9 +100,119 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
             return sourceId;
     }
 
+    /**
+     * The attribute mapping and feature id renaming between a source and a target type, computed
+     * once per type pair and shared by the retyping iterators, readers and writers
+     */
+    static class RetypePlan {
+        static final Cache<Key, RetypePlan> PLANS = CacheBuilder.newBuilder().maximumSize(1000)
+                .build();
+
+        /**
+         * The types are weakly referenced, so that neither the plan nor its key keep them alive
+         * once they are replaced
+         */
+        final WeakReference<SimpleFeatureType> source;
+
+        final WeakReference<SimpleFeatureType> target;
+
+        /**
+         * For each target attribute, the index of the source one, or -1 if missing
+         */
+        final int[] indexes;
+
+        final boolean renameFid;
+
+        final String sourcePrefix;
+
+        final String targetPrefix;
+
+        RetypePlan(SimpleFeatureType source, SimpleFeatureType target) {
+            this.source = new WeakReference<SimpleFeatureType>(source);
+            this.target = new WeakReference<SimpleFeatureType>(target);
+            this.indexes = new int[target.getAttributeCount()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = source.indexOf(target.getDescriptor(i).getName());
+            }
+            String sourceTypeName = source.getName().getLocalPart();
+            String targetTypeName = target.getName().getLocalPart();
+            this.renameFid = !targetTypeName.equals(sourceTypeName);
+            this.sourcePrefix = sourceTypeName + ".";
+            this.targetPrefix = targetTypeName + ".";
+        }
+
+        /**
+         * Returns the plan for the given types, reusing the current one if it matches them
+         */
+        static RetypePlan get(RetypePlan current, final SimpleFeatureType source,
+                final SimpleFeatureType target) {
+            if (current != null && current.source.get() == source
+                    && current.target.get() == target) {
+                return current;
+            }
+            try {
+                return PLANS.get(new Key(source, target), new Callable<RetypePlan>() {
+                    public RetypePlan call() {
+                        return new RetypePlan(source, target);
+                    }
+                });
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to compute the retype plan", e.getCause());
+            }
+        }
+
+        String retypeId(String id) {
+            if (renameFid && id != null && id.startsWith(sourcePrefix)) {
+                return targetPrefix + id.substring(sourcePrefix.length());
+            }
+            return id;
+        }
+
+        /**
+         * Identifies a type pair by identity, feature types are rebuilt when their configuration
+         * changes. The types are weakly referenced: once a stale pair is collected its key no
+         * longer matches anything, and the entry just waits to be evicted
+         */
+        static class Key {
+            final WeakReference<SimpleFeatureType> source;
+
+            final WeakReference<SimpleFeatureType> target;
+
+            final int hashCode;
+
+            Key(SimpleFeatureType source, SimpleFeatureType target) {
+                this.source = new WeakReference<SimpleFeatureType>(source);
+                this.target = new WeakReference<SimpleFeatureType>(target);
+                this.hashCode = 31 * System.identityHashCode(source)
+                        + System.identityHashCode(target);
+            }
+
+            @Override
+            public int hashCode() {
+                return hashCode;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (obj == this) {
+                    return true;
+                }
+                if (!(obj instanceof Key)) {
+                    return false;
+                }
+                Key other = (Key) obj;
+                SimpleFeatureType s = source.get();
+                SimpleFeatureType t = target.get();
+                return s != null && t != null && s == other.source.get()
+                        && t == other.target.get();
+            }
+        }
+    }
+
     public static class RetypingIterator implements SimpleFeatureIterator {
     	ISOSimpleFeatureBuilder builder;
         SimpleFeatureIterator delegate;
+        RetypePlan plan;
 
         public RetypingIterator(SimpleFeatureIterator delegate, SimpleFeatureType target) {
             this.delegate = delegate;
@@ -111,7 +225,9 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
 
         public SimpleFeature next() {
             try {
-                return ISORetypingFeatureCollection.retype(delegate.next(), builder);
+                SimpleFeature source = delegate.next();
+                plan = RetypePlan.get(plan, source.getFeatureType(), builder.getFeatureType());
+                return ISORetypingFeatureCollection.retype(source, builder, plan);
             } catch (IllegalAttributeException e) {
                 throw new RuntimeException(e);
             }
@@ -127,6 +243,7 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
             FeatureReader<SimpleFeatureType, SimpleFeature> {
         FeatureReader<SimpleFeatureType, SimpleFeature> delegate;
         ISOSimpleFeatureBuilder builder;
+        RetypePlan plan;
 
         public ISORetypingFeatureReader(FeatureReader<SimpleFeatureType, SimpleFeature> delegate,
                 SimpleFeatureType target) {
@@ -150,7 +267,9 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
 
         public SimpleFeature next() throws IOException, IllegalAttributeException,
                 NoSuchElementException {
-            return ISORetypingFeatureCollection.retype(delegate.next(), builder);
+            SimpleFeature source = delegate.next();
+            plan = RetypePlan.get(plan, source.getFeatureType(), builder.getFeatureType());
+            return ISORetypingFeatureCollection.retype(source, builder, plan);
         }
     }
 
@@ -164,6 +283,8 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
 
         private SimpleFeature retyped;
 
+        private RetypePlan plan;
+
         public RetypingFeatureWriter(FeatureWriter<SimpleFeatureType, SimpleFeature> delegate,
                 SimpleFeatureType target) {
             this.delegate = delegate;
@@ -187,7 +308,8 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
         public SimpleFeature next() throws IOException {
             try {
                 current = delegate.next();
-                retyped = ISORetypingFeatureCollection.retype(current, builder);
+                plan = RetypePlan.get(plan, current.getFeatureType(), builder.getFeatureType());
+                retyped = ISORetypingFeatureCollection.retype(current, builder, plan);
                 return retyped;
             } catch (IllegalAttributeException e) {
                 throw (IOException) new IOException("Error occurred while retyping feature")
@@ -202,10 +324,15 @@ public class ISORetypingFeatureCollection extends ISODecoratingSimpleFeatureColl
         public void write() throws IOException {
             try {
                 SimpleFeatureType target = getFeatureType();
-                for (int i = 0; i < target.getAttributeCount(); i++) {
-                    AttributeDescriptor at = target.getDescriptor(i);
+                int[] indexes = plan.indexes;
+                for (int i = 0; i < indexes.length; i++) {
                     Object value = retyped.getAttribute(i);
-                    current.setAttribute(at.getLocalName(), value);
+                    if (indexes[i] >= 0) {
+                        current.setAttribute(indexes[i], value);
+                    } else {
+                        AttributeDescriptor at = target.getDescriptor(i);
+                        current.setAttribute(at.getLocalName(), value);
+                    }
                 }
                 delegate.write();
             } catch (IllegalAttributeException e) {
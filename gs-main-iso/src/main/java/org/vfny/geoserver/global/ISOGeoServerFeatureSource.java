@@ -209,6 +209,16 @@ public class ISOGeoServerFeatureSource implements SimpleFeatureSource {
         return new ISOGeoServerFeatureSource(featureSource, settings);
     }
 
+    /**
+     * Notifies that the data of a feature type changed, so that the keyset paging cursors
+     * computed on the old data are no longer used
+     *
+     * @param typeName the qualified name of the feature type, as published
+     */
+    public static void dataChanged(Name typeName) {
+        ISOKeysetPagedFeatureCollection.invalidate(typeName);
+    }
+
     /**
      * Takes a query and adapts it to match re definitionQuery filter
      * configured for a feature type.
@@ -435,6 +445,22 @@ public class ISOGeoServerFeatureSource implements SimpleFeatureSource {
             }
         }
 
+        // keyset paging: if we know where the requested page starts, seek to it instead of
+        // sorting and skipping all the previous pages
+        String pageKey = null;
+        ISOKeysetPagedFeatureCollection.Cursor cursor = null;
+        if (sortBy != null && maxFeatures != null
+                && ISOKeysetPagedFeatureCollection.canPage(sortBy)) {
+            pageKey = ISOKeysetPagedFeatureCollection.pageKey(schema.getName(),
+                    definitionQuery, query, sortBy);
+            cursor = ISOKeysetPagedFeatureCollection.getCursor(pageKey, offset == null ? 0 : offset);
+            if (cursor != null) {
+                // copy, the filter of the caller must not be changed
+                query = new Query(query);
+                query.setFilter(ff.and(query.getFilter(), cursor.seekFilter(sortBy, ff)));
+            }
+        }
+
         Query reprojected = reprojectFilter(query);
         Query newQuery = adaptQuery(reprojected, schema);
         
@@ -458,12 +484,19 @@ public class ISOGeoServerFeatureSource implements SimpleFeatureSource {
             SimpleFeatureCollection fc = source.getFeatures(newQuery);
             
             // apply sorting if necessary
-            if(sortBy != null) {
+            if (pageKey != null) {
+                // sorting and paging in one go
+                fc = new ISOKeysetPagedFeatureCollection(fc, sortBy, pageKey,
+                        offset == null ? 0 : offset, maxFeatures, cursor);
+            } else if(sortBy != null && ISOMergeSortedFeatureCollection.ENABLED) {
+                // bounded memory sort, spills to disk on large results
+                fc = new ISOMergeSortedFeatureCollection(fc, sortBy);
+            } else if(sortBy != null) {
                 fc = new ISOSortedSimpleFeatureCollection(fc, sortBy);
             }
             
             //apply limit offset if necessary
-            if (offset != null || maxFeatures != null) {
+            if (pageKey == null && (offset != null || maxFeatures != null)) {
                 fc = new ISOMaxSimpleFeatureCollection(fc, offset == null ? 0 : offset, 
                         maxFeatures == null ? Integer.MAX_VALUE : maxFeatures);
             }
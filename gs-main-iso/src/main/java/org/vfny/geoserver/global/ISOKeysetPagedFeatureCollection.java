@@ -0,0 +1,399 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.vfny.geoserver.global;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.Hints;
+import org.geotools.feature.collection.ISODecoratingSimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Sorts and pages a feature collection in memory for stores that cannot sort natively, using
+ * keyset (seek) pagination.
+ * <p>
+ * Once a page is computed the sort key and feature id of its last feature are remembered as the
+ * cursor of the page starting right after it. When that page is requested, the cursor is turned
+ * into a seek predicate pushed down to the store, and only the page size best features are kept
+ * while scanning, instead of sorting the whole result and skipping <code>offset</code> features.
+ * Feature ids are used as a tie breaker, so that the order is total and stable across pages.
+ * </p>
+ * <p>
+ * The cursors are kept server side, so the standard startIndex based next/previous links keep
+ * working unchanged. They are keyed by the data version of the feature type along with the user,
+ * and the version is bumped by {@link #invalidate(Name)} whenever the data changes, so that a
+ * cursor computed before a change is never used to seek in the changed data. Changes made
+ * behind GeoServer back are only caught by the cursors expiration.
+ * </p>
+ */
+class ISOKeysetPagedFeatureCollection extends ISODecoratingSimpleFeatureCollection {
+
+    /**
+     * Enables keyset paging, when disabled the full in memory sort is used
+     */
+    static final boolean ENABLED = Boolean.getBoolean("org.geoserver.iso.keysetPaging");
+
+    /**
+     * The remembered cursors, by page key and start index
+     */
+    static final Cache<String, Cursor> CURSORS = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("org.geoserver.iso.keysetPaging.cursors", 10000))
+            .expireAfterAccess(10, TimeUnit.MINUTES).build();
+
+    /**
+     * The data version of each feature type, by qualified name
+     */
+    static final ConcurrentMap<String, AtomicLong> VERSIONS =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    SortBy[] sortBy;
+
+    String pageKey;
+
+    int offset;
+
+    int maxFeatures;
+
+    Cursor cursor;
+
+    Comparator<Object[]> comparator;
+
+    List<SimpleFeature> page;
+
+    /**
+     * @param delegate the collection to sort and page, already filtered with the cursor seek
+     *        predicate if one was found
+     * @param pageKey identifies the query, see {@link #pageKey(String, Query, SortBy[])}
+     * @param cursor the cursor of the page starting at offset, or null
+     */
+    ISOKeysetPagedFeatureCollection(SimpleFeatureCollection delegate, SortBy[] sortBy,
+            String pageKey, int offset, int maxFeatures, Cursor cursor) {
+        super(delegate);
+        this.sortBy = sortBy;
+        this.pageKey = pageKey;
+        this.offset = offset;
+        this.maxFeatures = maxFeatures;
+        this.cursor = cursor;
+        this.comparator = new KeyComparator(sortBy);
+    }
+
+    /**
+     * Builds the key identifying the pages of a query, before any seek predicate is added to it
+     */
+    static String pageKey(Name typeName, Filter definitionQuery, Query query, SortBy[] sortBy) {
+        String name = versionKey(typeName);
+        StringBuilder sb = new StringBuilder(name);
+        sb.append('#').append(version(name));
+        sb.append('|').append(user());
+        sb.append('|').append(definitionQuery);
+        sb.append('|').append(query.getFilter());
+        sb.append('|').append(Arrays.toString(sortBy));
+        sb.append('|').append(query.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS));
+        return sb.toString();
+    }
+
+    /**
+     * Makes the cursors of the feature type unreachable, to be called when its data changes
+     */
+    static void invalidate(Name typeName) {
+        version(versionKey(typeName)).incrementAndGet();
+    }
+
+    static String versionKey(Name typeName) {
+        return typeName.getNamespaceURI() + ":" + typeName.getLocalPart();
+    }
+
+    static AtomicLong version(String name) {
+        AtomicLong version = VERSIONS.get(name);
+        if (version == null) {
+            AtomicLong created = new AtomicLong();
+            version = VERSIONS.putIfAbsent(name, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Identifies the current user and roles, secured sources limit the features each user can
+     * see, so cursors are not shared between users
+     */
+    static String user() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return "";
+        }
+        List<String> roles = new ArrayList<String>();
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            roles.add(authority.getAuthority());
+        }
+        Collections.sort(roles);
+        return authentication.getName() + roles;
+    }
+
+    /**
+     * Returns true if keyset paging can be used for the given sort
+     */
+    static boolean canPage(SortBy[] sortBy) {
+        if (!ENABLED || sortBy == null) {
+            return false;
+        }
+        for (SortBy sb : sortBy) {
+            if (sb.getPropertyName() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cursor for the page starting at offset, if one is known
+     */
+    static Cursor getCursor(String pageKey, int offset) {
+        if (offset <= 0) {
+            return null;
+        }
+        return CURSORS.getIfPresent(pageKey + "@" + offset);
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        final Iterator<SimpleFeature> it = page().iterator();
+        return new SimpleFeatureIterator() {
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public SimpleFeature next() throws NoSuchElementException {
+                return it.next();
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return page().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return page().isEmpty();
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema()
+                .getCoordinateReferenceSystem());
+        for (SimpleFeature f : page()) {
+            if (f.getBounds() != null && !f.getBounds().isEmpty()) {
+                bounds.include(f.getBounds());
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Computes the page keeping only the best <code>skip + maxFeatures</code> features in a
+     * bounded heap, and records the cursor of the next page
+     */
+    synchronized List<SimpleFeature> page() {
+        if (page != null) {
+            return page;
+        }
+
+        // with a cursor the seek predicate already removed the previous pages
+        int skip = cursor != null ? 0 : offset;
+        long limit = (long) skip + maxFeatures;
+        final int k = limit > Integer.MAX_VALUE - 1 ? Integer.MAX_VALUE - 1 : (int) limit;
+
+        // max heap, the head is the worst feature kept so far
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.min(k, 1024) + 1,
+                Collections.reverseOrder(new EntryComparator()));
+        SimpleFeatureIterator fi = delegate.features();
+        try {
+            while (fi.hasNext()) {
+                SimpleFeature f = fi.next();
+                Object[] key = key(f);
+                // the seek predicate is inclusive on the sort key, drop the ties already returned
+                if (cursor != null && comparator.compare(key, cursor.key) <= 0) {
+                    continue;
+                }
+                if (heap.size() < k) {
+                    heap.add(new Entry(key, f));
+                } else if (comparator.compare(key, heap.peek().key) < 0) {
+                    heap.poll();
+                    heap.add(new Entry(key, f));
+                }
+            }
+        } finally {
+            fi.close();
+        }
+
+        List<Entry> sorted = new ArrayList<Entry>(heap);
+        Collections.sort(sorted, new EntryComparator());
+        List<SimpleFeature> result = new ArrayList<SimpleFeature>(Math.max(0, sorted.size() - skip));
+        for (int i = skip; i < sorted.size(); i++) {
+            result.add(sorted.get(i).feature);
+        }
+
+        // remember where the next page starts
+        if (result.size() == maxFeatures && !sorted.isEmpty()) {
+            Object[] last = sorted.get(sorted.size() - 1).key;
+            if (isComplete(last)) {
+                CURSORS.put(pageKey + "@" + (offset + maxFeatures), new Cursor(last));
+            }
+        }
+
+        page = result;
+        return page;
+    }
+
+    /**
+     * The sort key of a feature, the sort attribute values followed by the feature id
+     */
+    Object[] key(SimpleFeature f) {
+        Object[] key = new Object[sortBy.length + 1];
+        for (int i = 0; i < sortBy.length; i++) {
+            key[i] = f.getAttribute(sortBy[i].getPropertyName().getPropertyName());
+        }
+        key[sortBy.length] = f.getID();
+        return key;
+    }
+
+    boolean isComplete(Object[] key) {
+        for (Object value : key) {
+            if (value == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The position after which the next page starts
+     */
+    static class Cursor {
+        final Object[] key;
+
+        Cursor(Object[] key) {
+            this.key = key;
+        }
+
+        /**
+         * Builds the seek predicate selecting the features whose sort key is greater or equal
+         * than the cursor one, the ties are removed in memory by feature id. Cursors never hold
+         * null values, and {@link KeyComparator} sorts nulls first, so they come after the cursor
+         * only in descending order, where they have to be matched explicitly as comparisons
+         * never match null.
+         */
+        Filter seekFilter(SortBy[] sortBy, FilterFactory2 ff) {
+            List<Filter> alternatives = new ArrayList<Filter>();
+            for (int i = 0; i <= sortBy.length; i++) {
+                List<Filter> terms = new ArrayList<Filter>();
+                for (int j = 0; j < i; j++) {
+                    terms.add(ff.equals(sortBy[j].getPropertyName(), ff.literal(key[j])));
+                }
+                if (i < sortBy.length) {
+                    if (sortBy[i].getSortOrder() == SortOrder.DESCENDING) {
+                        terms.add(ff.or(
+                                ff.less(sortBy[i].getPropertyName(), ff.literal(key[i])),
+                                ff.isNull(sortBy[i].getPropertyName())));
+                    } else {
+                        terms.add(ff.greater(sortBy[i].getPropertyName(), ff.literal(key[i])));
+                    }
+                }
+                alternatives.add(terms.size() == 1 ? terms.get(0) : ff.and(terms));
+            }
+            return ff.or(alternatives);
+        }
+    }
+
+    static class Entry {
+        final Object[] key;
+
+        final SimpleFeature feature;
+
+        Entry(Object[] key, SimpleFeature feature) {
+            this.key = key;
+            this.feature = feature;
+        }
+    }
+
+    class EntryComparator implements Comparator<Entry> {
+        public int compare(Entry e1, Entry e2) {
+            return comparator.compare(e1.key, e2.key);
+        }
+    }
+
+    /**
+     * Compares sort keys following the sort orders, nulls first, feature ids last
+     */
+    static class KeyComparator implements Comparator<Object[]> {
+        SortBy[] sortBy;
+
+        KeyComparator(SortBy[] sortBy) {
+            this.sortBy = sortBy;
+        }
+
+        public int compare(Object[] k1, Object[] k2) {
+            for (int i = 0; i < k1.length; i++) {
+                int result = compareValues(k1[i], k2[i]);
+                if (result != 0) {
+                    if (i < sortBy.length && sortBy[i].getSortOrder() == SortOrder.DESCENDING) {
+                        return -result;
+                    }
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        int compareValues(Object v1, Object v2) {
+            if (v1 == v2) {
+                return 0;
+            } else if (v1 == null) {
+                return -1;
+            } else if (v2 == null) {
+                return 1;
+            } else if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+                return ((Comparable<Object>) v1).compareTo(v2);
+            }
+            return v1.toString().compareTo(v2.toString());
+        }
+    }
+}
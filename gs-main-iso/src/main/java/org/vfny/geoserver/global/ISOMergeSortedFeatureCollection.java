@@ -0,0 +1,779 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.vfny.geoserver.global;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.ISODecoratingSimpleFeatureCollection;
+import org.geotools.feature.simple.ISOSimpleFeatureBuilder;
+import org.geotools.util.NIOUtilities;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.geometry.Geometry;
+import org.opengis.geometry.aggregate.MultiPrimitive;
+import org.opengis.geometry.complex.CompositeSurface;
+import org.opengis.geometry.coordinate.LineString;
+import org.opengis.geometry.coordinate.PointArray;
+import org.opengis.geometry.primitive.Curve;
+import org.opengis.geometry.primitive.CurveSegment;
+import org.opengis.geometry.primitive.OrientableCurve;
+import org.opengis.geometry.primitive.OrientableSurface;
+import org.opengis.geometry.primitive.Point;
+import org.opengis.geometry.primitive.Primitive;
+import org.opengis.geometry.primitive.Ring;
+import org.opengis.geometry.primitive.Solid;
+import org.opengis.geometry.primitive.SolidBoundary;
+import org.opengis.geometry.primitive.Surface;
+import org.opengis.geometry.primitive.SurfaceBoundary;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Sorts a feature collection for stores that cannot sort natively, within a bounded amount of
+ * memory.
+ * <p>
+ * Features are kept in memory as they are, until the per request budget
+ * ({@link #REQUEST_MEMORY}) is exceeded. At that point, or when the budget shared by all the
+ * sorts running in the JVM ({@link #GLOBAL_MEMORY}) cannot accommodate more features and the
+ * current run holds at least {@link #MIN_RUN_SIZE} features, the run is sorted and spilled to a
+ * temporary file in a compact binary encoding. The runs are then memory mapped and merged while
+ * iterating, and unmapped and deleted when the iterator is closed.
+ * </p>
+ * <p>
+ * Disabled by default, set <code>org.geoserver.iso.externalSort</code> to true to enable it.
+ * </p>
+ */
+class ISOMergeSortedFeatureCollection extends ISODecoratingSimpleFeatureCollection {
+
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.vfny.geoserver.global");
+
+    /**
+     * Enables the bounded memory sort, when disabled the plain in memory sort is used
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "org.geoserver.iso.externalSort", "false"));
+
+    /**
+     * Bytes a single sort can keep in memory before spilling to disk
+     */
+    static final long REQUEST_MEMORY = Math.min(Integer.MAX_VALUE, Long.getLong(
+            "org.geoserver.iso.externalSort.requestMemory", 64 * 1024 * 1024));
+
+    /**
+     * Bytes all the sorts running in the JVM can keep in memory
+     */
+    static final long GLOBAL_MEMORY = Long.getLong("org.geoserver.iso.externalSort.globalMemory",
+            512 * 1024 * 1024);
+
+    /**
+     * Features a run must hold before it is spilled because of the global budget, so that
+     * memory pressure from the other sorts cannot turn every feature into a file of its own
+     */
+    static final int MIN_RUN_SIZE = Math.max(1, Integer.getInteger(
+            "org.geoserver.iso.externalSort.minRunSize", 1000));
+
+    /**
+     * Rough overhead of a feature in memory, beyond its attribute values
+     */
+    static final int RECORD_OVERHEAD = 64;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final AtomicLong USED_MEMORY = new AtomicLong();
+
+    SortBy[] sortBy;
+
+    ISOMergeSortedFeatureCollection(SimpleFeatureCollection delegate, SortBy[] sortBy) {
+        super(delegate);
+        this.sortBy = sortBy;
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        try {
+            return new MergingIterator(getSchema(), sortBy, delegate.features());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to sort features", e);
+        }
+    }
+
+
+    /**
+     * A feature in memory, along with its sort key
+     */
+    static class Record {
+        final Object[] key;
+
+        final SimpleFeature feature;
+
+        Record(Object[] key, SimpleFeature feature) {
+            this.key = key;
+            this.feature = feature;
+        }
+    }
+
+    /**
+     * Sorts on creation, then merges the in memory run and the spilled ones
+     */
+    static class MergingIterator implements SimpleFeatureIterator {
+        final FeatureCodec codec;
+
+        final SortBy[] sortBy;
+
+        final Comparator<Object[]> comparator;
+
+        List<Record> memoryRun = new ArrayList<Record>();
+
+        long reserved;
+
+        List<File> files = new ArrayList<File>();
+
+        List<RunReader> readers = new ArrayList<RunReader>();
+
+        PriorityQueue<RunReader> queue;
+
+        int memoryIndex;
+
+        MergingIterator(SimpleFeatureType schema, SortBy[] sortBy, SimpleFeatureIterator features)
+                throws IOException {
+            this.codec = new FeatureCodec(schema);
+            this.sortBy = sortBy;
+            this.comparator = new ISOKeysetPagedFeatureCollection.KeyComparator(sortBy);
+
+            boolean completed = false;
+            try {
+                try {
+                    while (features.hasNext()) {
+                        SimpleFeature f = features.next();
+                        long size = codec.estimate(f);
+                        if (!reserve(size)) {
+                            // spill when the request budget is exhausted, or when the global
+                            // one is and the run is large enough to be worth a file
+                            boolean overBudget = reserved + size > REQUEST_MEMORY;
+                            if (overBudget && !memoryRun.isEmpty()
+                                    || memoryRun.size() >= MIN_RUN_SIZE) {
+                                spill();
+                            }
+                            // otherwise go over the global budget, it is a soft limit
+                            if (!reserve(size)) {
+                                forceReserve(size);
+                            }
+                        }
+                        memoryRun.add(new Record(key(f), f));
+                    }
+                } finally {
+                    features.close();
+                }
+
+                Collections.sort(memoryRun, new RecordComparator(comparator));
+                if (!files.isEmpty()) {
+                    // merge the spilled runs with the in memory one
+                    queue = new PriorityQueue<RunReader>(files.size() + 1,
+                            new Comparator<RunReader>() {
+                                public int compare(RunReader r1, RunReader r2) {
+                                    return comparator.compare(r1.key, r2.key);
+                                }
+                            });
+                    for (File file : files) {
+                        RunReader reader = new RunReader(file);
+                        readers.add(reader);
+                        if (reader.advance()) {
+                            queue.add(reader);
+                        }
+                    }
+                    RunReader memory = new MemoryRunReader();
+                    if (memory.advance()) {
+                        queue.add(memory);
+                    }
+                }
+                completed = true;
+            } finally {
+                if (!completed) {
+                    close();
+                }
+            }
+        }
+
+        Object[] key(SimpleFeature f) {
+            Object[] key = new Object[sortBy.length + 1];
+            for (int i = 0; i < sortBy.length; i++) {
+                // natural and reverse order sort by feature id
+                key[i] = sortBy[i].getPropertyName() == null ? f.getID() : f
+                        .getAttribute(sortBy[i].getPropertyName().getPropertyName());
+            }
+            key[sortBy.length] = f.getID();
+            return key;
+        }
+
+        /**
+         * Reserves memory for a record, within both the request and global budget
+         */
+        boolean reserve(long size) {
+            if (reserved + size > REQUEST_MEMORY) {
+                return false;
+            }
+            while (true) {
+                long used = USED_MEMORY.get();
+                if (used + size > GLOBAL_MEMORY) {
+                    return false;
+                }
+                if (USED_MEMORY.compareAndSet(used, used + size)) {
+                    reserved += size;
+                    return true;
+                }
+            }
+        }
+
+        void forceReserve(long size) {
+            USED_MEMORY.addAndGet(size);
+            reserved += size;
+        }
+
+        void release() {
+            USED_MEMORY.addAndGet(-reserved);
+            reserved = 0;
+        }
+
+        /**
+         * Sorts the in memory run and writes it to a temporary file
+         */
+        void spill() throws IOException {
+            Collections.sort(memoryRun, new RecordComparator(comparator));
+            File file = File.createTempFile("iso-sort", ".run");
+            files.add(file);
+
+            long bytes = 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 64 * 1024));
+            try {
+                for (Record record : memoryRun) {
+                    byte[] data = codec.encode(record.feature);
+                    out.writeInt(data.length);
+                    out.write(data);
+                    bytes += data.length + 4;
+                }
+            } finally {
+                out.close();
+            }
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Spilled a run of " + memoryRun.size() + " features, " + bytes
+                        + " bytes, to " + file);
+            }
+
+            memoryRun.clear();
+            release();
+        }
+
+        public boolean hasNext() {
+            if (queue != null) {
+                return !queue.isEmpty();
+            }
+            return memoryRun != null && memoryIndex < memoryRun.size();
+        }
+
+        public SimpleFeature next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                if (queue == null) {
+                    // let the returned features go as soon as the caller is done with them
+                    return memoryRun.set(memoryIndex++, null).feature;
+                }
+
+                RunReader reader = queue.poll();
+                SimpleFeature result = reader.feature;
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read sorted features", e);
+            }
+        }
+
+        public void close() {
+            memoryRun = null;
+            queue = null;
+            release();
+            // unmap before deleting, a mapped file cannot be removed on some platforms
+            for (RunReader reader : readers) {
+                reader.dispose();
+            }
+            readers.clear();
+            for (File file : files) {
+                if (!file.delete()) {
+                    LOGGER.warning("Could not delete sort run " + file);
+                }
+            }
+            files.clear();
+        }
+
+        /**
+         * Walks a run, holding its current feature and key
+         */
+        class RunReader {
+            ByteBuffer buffer;
+
+            SimpleFeature feature;
+
+            Object[] key;
+
+            RunReader() {
+            }
+
+            RunReader(File file) throws IOException {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            channel.size());
+                    this.buffer = mapped;
+                } finally {
+                    // the mapping stays valid after the channel is closed
+                    raf.close();
+                }
+            }
+
+            boolean advance() throws IOException {
+                if (buffer == null || !buffer.hasRemaining()) {
+                    feature = null;
+                    key = null;
+                    // the run is over, no need to wait for close to unmap it
+                    dispose();
+                    return false;
+                }
+                byte[] data = new byte[buffer.getInt()];
+                buffer.get(data);
+                feature = codec.decode(data);
+                key = key(feature);
+                return true;
+            }
+
+            /**
+             * Unmaps the run, the buffer cannot be used afterwards
+             */
+            void dispose() {
+                if (buffer != null) {
+                    NIOUtilities.clean(buffer, true);
+                    buffer = null;
+                }
+            }
+        }
+
+        class MemoryRunReader extends RunReader {
+            boolean advance() throws IOException {
+                if (memoryIndex >= memoryRun.size()) {
+                    feature = null;
+                    key = null;
+                    return false;
+                }
+                Record record = memoryRun.set(memoryIndex++, null);
+                feature = record.feature;
+                key = record.key;
+                return true;
+            }
+        }
+    }
+
+    static class RecordComparator implements Comparator<Record> {
+        Comparator<Object[]> comparator;
+
+        RecordComparator(Comparator<Object[]> comparator) {
+            this.comparator = comparator;
+        }
+
+        public int compare(Record r1, Record r2) {
+            return comparator.compare(r1.key, r2.key);
+        }
+    }
+
+    /**
+     * Compact binary encoding of simple features: common attribute types are written with a type
+     * tag, geometries with {@link GeometryCodec}, and only the remaining serializable values with
+     * java serialization
+     */
+    static class FeatureCodec {
+        static final byte NULL = 0;
+
+        static final byte STRING = 1;
+
+        static final byte INTEGER = 2;
+
+        static final byte LONG = 3;
+
+        static final byte DOUBLE = 4;
+
+        static final byte FLOAT = 5;
+
+        static final byte BOOLEAN = 6;
+
+        static final byte SHORT = 7;
+
+        static final byte DATE = 8;
+
+        static final byte OBJECT = 9;
+
+        static final byte GEOMETRY = 10;
+
+        ISOSimpleFeatureBuilder builder;
+
+        int attributeCount;
+
+        GeometryCodec geometries = new GeometryCodec();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+        FeatureCodec(SimpleFeatureType schema) {
+            this.builder = new ISOSimpleFeatureBuilder(schema);
+            this.attributeCount = schema.getAttributeCount();
+        }
+
+        /**
+         * Rough amount of heap used by the feature, without encoding it
+         */
+        long estimate(SimpleFeature feature) {
+            long size = RECORD_OVERHEAD;
+            for (int i = 0; i < attributeCount; i++) {
+                Object value = feature.getAttribute(i);
+                if (value == null) {
+                    size += 8;
+                } else if (value instanceof String) {
+                    size += 40 + 2 * ((String) value).length();
+                } else if (value instanceof Geometry) {
+                    size += geometries.estimate((Geometry) value);
+                } else {
+                    size += 24;
+                }
+            }
+            return size;
+        }
+
+        byte[] encode(SimpleFeature feature) throws IOException {
+            bytes.reset();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, feature.getID());
+            for (int i = 0; i < attributeCount; i++) {
+                writeValue(out, feature.getAttribute(i));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        SimpleFeature decode(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            String id = readString(in);
+            for (int i = 0; i < attributeCount; i++) {
+                builder.add(readValue(in));
+            }
+            return builder.buildFeature(id);
+        }
+
+        void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value.getClass() == Date.class) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            } else if (value instanceof Geometry) {
+                out.writeByte(GEOMETRY);
+                geometries.write(out, (Geometry) value);
+            } else if (value instanceof Serializable) {
+                out.writeByte(OBJECT);
+                ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(serialized);
+                oos.writeObject(value);
+                oos.close();
+                out.writeInt(serialized.size());
+                serialized.writeTo(out);
+            } else {
+                throw new IOException("Cannot spill values of type "
+                        + value.getClass().getName() + " to disk");
+            }
+        }
+
+        Object readValue(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case SHORT:
+                return in.readShort();
+            case DATE:
+                return new Date(in.readLong());
+            case GEOMETRY:
+                return geometries.read(in);
+            case OBJECT:
+                byte[] serialized = new byte[in.readInt()];
+                in.readFully(serialized);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw (IOException) new IOException("Could not read sorted feature")
+                            .initCause(e);
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new IOException("Unknown value type " + type);
+            }
+        }
+
+        void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] encoded = value.getBytes(UTF8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+
+        String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] encoded = new byte[length];
+            in.readFully(encoded);
+            return new String(encoded, UTF8);
+        }
+    }
+
+    /**
+     * Encoding of ISO geometries, relying on their java serialization so that the spilled
+     * geometries come back with the same segments, orientations and structure as the in memory
+     * ones.
+     * <p>
+     * The coordinate reference systems are replaced by an index in a table local to the codec, as
+     * the encoded geometries never leave the sort that wrote them, keeping them from being
+     * serialized over and over along with every geometry and position.
+     * </p>
+     */
+    static class GeometryCodec {
+        /**
+         * Rough heap overhead of a position beyond its ordinates
+         */
+        static final int POSITION_OVERHEAD = 48;
+
+        List<CoordinateReferenceSystem> crsTable = new ArrayList<CoordinateReferenceSystem>();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+        long estimate(Geometry geometry) {
+            int dim = geometry.getCoordinateDimension();
+            return 64 + positions(geometry) * (8L * dim + POSITION_OVERHEAD);
+        }
+
+        long positions(Geometry geometry) {
+            if (geometry instanceof Point) {
+                return 1;
+            } else if (geometry instanceof Curve) {
+                long count = 0;
+                for (CurveSegment segment : ((Curve) geometry).getSegments()) {
+                    count += points(segment).size();
+                }
+                return count;
+            } else if (geometry instanceof Surface) {
+                SurfaceBoundary boundary = ((Surface) geometry).getBoundary();
+                if (boundary == null) {
+                    return 0;
+                }
+                long count = positions(boundary.getExterior());
+                for (Ring interior : boundary.getInteriors()) {
+                    count += positions(interior);
+                }
+                return count;
+            } else if (geometry instanceof Solid) {
+                SolidBoundary boundary = ((Solid) geometry).getBoundary();
+                if (boundary == null) {
+                    return 0;
+                }
+                long count = positions(boundary.getExterior());
+                if (boundary.getInteriors() != null) {
+                    for (CompositeSurface interior : boundary.getInteriors()) {
+                        count += positions(interior);
+                    }
+                }
+                return count;
+            } else if (geometry instanceof MultiPrimitive) {
+                long count = 0;
+                for (Primitive primitive : (Collection<? extends Primitive>) ((MultiPrimitive) geometry)
+                        .getElements()) {
+                    count += positions(primitive);
+                }
+                return count;
+            }
+            return 0;
+        }
+
+        long positions(Ring ring) {
+            long count = 0;
+            for (OrientableCurve generator : ring.getGenerators()) {
+                count += positions(generator.getPrimitive());
+            }
+            return count;
+        }
+
+        long positions(CompositeSurface shell) {
+            long count = 0;
+            for (OrientableSurface generator : shell.getGenerators()) {
+                count += positions(generator.getPrimitive());
+            }
+            return count;
+        }
+
+        PointArray points(CurveSegment segment) {
+            if (segment instanceof LineString) {
+                return ((LineString) segment).getControlPoints();
+            }
+            return segment.getSamplePoints();
+        }
+
+        void write(DataOutputStream out, Geometry geometry) throws IOException {
+            if (!(geometry instanceof Serializable)) {
+                throw new IOException("Cannot spill geometries of type "
+                        + geometry.getClass().getName() + " to disk");
+            }
+            bytes.reset();
+            ObjectOutputStream oos = new CRSReplacingOutputStream(bytes);
+            oos.writeObject(geometry);
+            oos.close();
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+
+        Geometry read(DataInputStream in) throws IOException {
+            byte[] serialized = new byte[in.readInt()];
+            in.readFully(serialized);
+            ObjectInputStream ois = new CRSResolvingInputStream(new ByteArrayInputStream(
+                    serialized));
+            try {
+                return (Geometry) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw (IOException) new IOException("Could not read sorted geometry")
+                        .initCause(e);
+            } finally {
+                ois.close();
+            }
+        }
+
+        int crsIndex(CoordinateReferenceSystem crs) {
+            int index = crsTable.indexOf(crs);
+            if (index < 0) {
+                index = crsTable.size();
+                crsTable.add(crs);
+            }
+            return index;
+        }
+
+        class CRSReplacingOutputStream extends ObjectOutputStream {
+            CRSReplacingOutputStream(ByteArrayOutputStream out) throws IOException {
+                super(out);
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                if (obj instanceof CoordinateReferenceSystem) {
+                    return new CRSReference(crsIndex((CoordinateReferenceSystem) obj));
+                }
+                return obj;
+            }
+        }
+
+        class CRSResolvingInputStream extends ObjectInputStream {
+            CRSResolvingInputStream(ByteArrayInputStream in) throws IOException {
+                super(in);
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException {
+                if (obj instanceof CRSReference) {
+                    return crsTable.get(((CRSReference) obj).index);
+                }
+                return obj;
+            }
+        }
+    }
+
+    /**
+     * Stands for an entry of the coordinate reference system table of a {@link GeometryCodec}
+     */
+    static class CRSReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        CRSReference(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.util.logging.Logger;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ISOCatalogBuilder;
 import org.geoserver.catalog.KeywordInfo;
 import org.geoserver.catalog.MetadataLinkInfo;
 import org.geoserver.catalog.NamespaceInfo;
@@ -52,6 +53,7 @@ import org.geotools.gml3.iso.GML;
 import org.geotools.xlink.XLINK;
 import org.geotools.xml.transform.TransformerBase;
 import org.geotools.xml.transform.Translator;
+import org.geotools.referencing.CRS;
 import org.geotools.xs.XS;
 import org.opengis.feature.type.AttributeType;
 import org.opengis.feature.type.Name;
@@ -59,6 +61,9 @@ import org.opengis.feature.type.Schema;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.capability.FunctionName;
 import org.opengis.parameter.Parameter;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.VerticalCRS;
 import org.vfny.geoserver.global.FeatureTypeInfoTitleComparator;
 import org.vfny.geoserver.util.ResponseUtils;
 import org.xml.sax.Attributes;
@@ -98,6 +103,12 @@ public abstract class CapabilitiesTransformer3D extends TransformerBase {
     protected static final String OGC_PREFIX = "ogc";
     protected static final String OGC_URI = OGC.NAMESPACE;
 
+    /** vertical extents namespace + prefix, used in the extended capabilities */
+    protected static final String VERTICAL_EXTENT_PREFIX = "iso3d";
+    protected static final String VERTICAL_EXTENT_URI = "http://geoserver.org/wfs/iso3d";
+
+    static final String EPSG_URN_PREFIX = "urn:ogc:def:crs:EPSG::";
+
     /** wfs service */
     protected WFSInfo wfs;
 
@@ -236,6 +247,43 @@ public abstract class CapabilitiesTransformer3D extends TransformerBase {
             };
     }
     
+    /**
+     * Returns the native vertical extent of a feature type as computed along with its bounds by
+     * {@link ISOCatalogBuilder}, or null if not known
+     */
+    static Double[] zRange(FeatureTypeInfo info) {
+        Double minZ = info.getMetadata().get(ISOCatalogBuilder.MIN_Z, Double.class);
+        Double maxZ = info.getMetadata().get(ISOCatalogBuilder.MAX_Z, Double.class);
+        return minZ != null && maxZ != null ? new Double[] { minZ, maxZ } : null;
+    }
+    
+    /**
+     * Returns the name of the coordinate reference system the vertical extent of a feature type
+     * is expressed in: the vertical component of its native CRS, or the native CRS itself when
+     * the height is not a separate component of it (e.g. a geographic 3D CRS)
+     */
+    static String verticalCRS(FeatureTypeInfo info) {
+        CoordinateReferenceSystem crs = info.getNativeCRS();
+        VerticalCRS vertical = crs == null ? null : CRS.getVerticalCRS(crs);
+        if (vertical != null) {
+            try {
+                Integer code = CRS.lookupEpsgCode(vertical, false);
+                if (code != null) {
+                    return EPSG_URN_PREFIX + code;
+                }
+            } catch (FactoryException e) {
+                LOGGER.log(Level.FINE, "Could not look up the vertical CRS code of "
+                        + info.getPrefixedName(), e);
+            }
+            return vertical.getName().getCode();
+        }
+        String srs = info.getSRS();
+        if (srs != null && srs.matches("(?ui)EPSG:[0-9]+")) {
+            return EPSG_URN_PREFIX + srs.substring(5);
+        }
+        return srs;
+    }
+    
     /**
      * Transformer for wfs 1.0 capabilities document.
      */
@@ -1309,6 +1357,7 @@ public abstract class CapabilitiesTransformer3D extends TransformerBase {
             }
 
             protected void extendedCapabilities() {
+                final List<FeatureTypeInfo> verticalExtents = verticalExtentTypes();
                 for (WFSExtendedCapabilitiesProvider cp : this.extCapsProviders) {
                     try {
                         cp.encode(new WFSExtendedCapabilitiesProvider.Translator() {
@@ -1325,6 +1374,10 @@ public abstract class CapabilitiesTransformer3D extends TransformerBase {
                             }
 
                             public void end(String element) {
+                                // there can be only one ows:ExtendedCapabilities, share it
+                                if ("ows:ExtendedCapabilities".equals(element)) {
+                                    verticalExtents(verticalExtents);
+                                }
                                 CapabilitiesTranslator1_1.this.end(element);
                             }
                         }, wfs, request);
@@ -1332,6 +1385,53 @@ public abstract class CapabilitiesTransformer3D extends TransformerBase {
                         throw new ServiceException("Extended capabilities provider threw error", e);
                     }
                 }
+                if (!verticalExtents.isEmpty()) {
+                    start("ows:ExtendedCapabilities");
+                    verticalExtents(verticalExtents);
+                    end("ows:ExtendedCapabilities");
+                }
+            }
+
+            /**
+             * The published feature types with a known vertical extent
+             */
+            List<FeatureTypeInfo> verticalExtentTypes() {
+                List<FeatureTypeInfo> result = new ArrayList<FeatureTypeInfo>();
+                String namespace = request.getNamespace();
+                for (FeatureTypeInfo ft : catalog.getFeatureTypes()) {
+                    if (ft.enabled() && zRange(ft) != null
+                            && (namespace == null || namespace.equals(ft.getNamespace().getPrefix()))) {
+                        result.add(ft);
+                    }
+                }
+                Collections.sort(result, new FeatureTypeInfoTitleComparator());
+                return result;
+            }
+
+            /**
+             * Encodes the vertical extents of the feature types in their native vertical CRS. The
+             * WGS84 bounding boxes are two dimensional, so the extents are published here, each
+             * naming the CRS its values are expressed in. Once written the list is cleared, so
+             * that it is not repeated.
+             */
+            void verticalExtents(List<FeatureTypeInfo> featureTypes) {
+                if (featureTypes.isEmpty()) {
+                    return;
+                }
+                start(VERTICAL_EXTENT_PREFIX + ":VerticalExtents", attributes(new String[] {
+                        "xmlns:" + VERTICAL_EXTENT_PREFIX, VERTICAL_EXTENT_URI }));
+                for (FeatureTypeInfo ft : featureTypes) {
+                    Double[] z = zRange(ft);
+                    String crs = verticalCRS(ft);
+                    start(VERTICAL_EXTENT_PREFIX + ":VerticalExtent", attributes(crs == null
+                            ? new String[] { "typeName", ft.getPrefixedName() }
+                            : new String[] { "typeName", ft.getPrefixedName(), "crs", crs }));
+                    element(VERTICAL_EXTENT_PREFIX + ":Minimum", String.valueOf(z[0]));
+                    element(VERTICAL_EXTENT_PREFIX + ":Maximum", String.valueOf(z[1]));
+                    end(VERTICAL_EXTENT_PREFIX + ":VerticalExtent");
+                }
+                end(VERTICAL_EXTENT_PREFIX + ":VerticalExtents");
+                featureTypes.clear();
             }
 
             /**
@@ -15,6 +15,15 @@ import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -28,7 +37,11 @@ import net.sf.cglib.proxy.LazyLoader;
 import org.geoserver.catalog.AttributeTypeInfo;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.PublishedInfo;
 import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.LocalPublished;
+import org.geoserver.ows.LocalWorkspace;
 import org.geoserver.feature.TypeNameExtractingVisitor;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
@@ -102,6 +115,8 @@ import org.opengis.filter.temporal.TContains;
 import org.opengis.filter.temporal.TEquals;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.xml.sax.helpers.NamespaceSupport;
 /**
  * Web Feature Service GetFeature operation.
@@ -180,6 +195,27 @@ public class GetFeature3D {
     /** stored query provider */
     StoredQueryProvider storedQueryProvider;
 
+    /** executor preparing the queries of a request concurrently, null for serial execution */
+    ExecutorService executor;
+
+    /** executor running the numberMatched counts in background, null for serial execution */
+    ScheduledThreadPoolExecutor countExecutor;
+
+    /** cache of numberMatched counts, may be null */
+    ISONumberMatchedCache numberMatchedCache;
+
+    /**
+     * Number of threads used by each WFS service to prepare the queries of a GetFeature request
+     * concurrently, zero (the default) disables the parallel mode
+     */
+    static final int QUERY_THREADS = Integer.getInteger("org.geoserver.wfs.iso.getFeatureThreads", 0);
+
+    /**
+     * Milliseconds the asynchronous numberMatched count queries are allowed to run, after that
+     * they are cancelled and numberMatched is reported as unknown
+     */
+    static final long COUNT_TIMEOUT = Long.getLong("org.geoserver.wfs.iso.countTimeout", 60000);
+
     /**
      * Creates the WFS 1.0/1.1 GetFeature operation.
      */
@@ -225,6 +261,30 @@ public class GetFeature3D {
         this.storedQueryProvider = storedQueryProvider;
     }
 
+    /**
+     * Sets the executor used to look up the feature types and open the feature sources of
+     * the queries concurrently. The queries are still processed in their original order, so that
+     * the maxFeatures/startIndex budget is shared across them as in the serial case.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the executor running the numberMatched counts of WFS 2.0 requests in background,
+     * along with their timeouts
+     */
+    public void setCountExecutor(ScheduledThreadPoolExecutor countExecutor) {
+        this.countExecutor = countExecutor;
+    }
+
+    /**
+     * Sets the cache used to avoid recomputing numberMatched when paging
+     */
+    public void setNumberMatchedCache(ISONumberMatchedCache numberMatchedCache) {
+        this.numberMatchedCache = numberMatchedCache;
+    }
+
     public FeatureCollectionResponse run(GetFeatureRequest3D request)
         throws WFSException {
         List<Query> queries = request.getQueries();
@@ -320,6 +380,12 @@ public class GetFeature3D {
 
         List results = new ArrayList();
         final List<CountExecutor> totalCountExecutors = new ArrayList<CountExecutor>();
+        final List<Future<Integer>> totalCountFutures = new ArrayList<Future<Integer>>();
+        final long countDeadline = System.currentTimeMillis() + COUNT_TIMEOUT;
+        // only WFS 2.0 responses carry numberMatched, for the others it is computed on demand
+        final boolean backgroundCount = request.getVersion().startsWith("2");
+        boolean completed = false;
+        List<Future<PreparedQuery>> prepared = prepareQueries(queries, request);
         try {
             for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
 
@@ -333,9 +399,14 @@ public class GetFeature3D {
                     }
                 }
 
+                PreparedQuery preparedQuery = getPreparedQuery(prepared, i, request);
                 List<FeatureTypeInfo> metas = new ArrayList();
-                for (QName typeName : query.getTypeNames()) {
-                    metas.add(featureTypeInfo(typeName, request));
+                if (preparedQuery != null) {
+                    metas.addAll(preparedQuery.metas);
+                } else {
+                    for (QName typeName : query.getTypeNames()) {
+                        metas.add(featureTypeInfo(typeName, request));
+                    }
                 }
 
                     // first is the primary feature type
@@ -492,8 +563,12 @@ public class GetFeature3D {
                 if (joins != null) {
                     hints = new Hints(ResourcePool.JOINS, joins);
                 }
-                FeatureSource<? extends FeatureType, ? extends Feature> source = 
-                    primaryMeta.getFeatureSource(null, hints);
+                FeatureSource<? extends FeatureType, ? extends Feature> source;
+                if (preparedQuery != null && preparedQuery.source != null && joins == null) {
+                    source = preparedQuery.source;
+                } else {
+                    source = primaryMeta.getFeatureSource(null, hints);
+                }
 
                 // handle local maximum
                 int queryMaxFeatures = maxFeatures - count;
@@ -567,11 +642,17 @@ public class GetFeature3D {
                                 && (queryMaxFeatures == Integer.MAX_VALUE || size < queryMaxFeatures)
                                 && offset <= 0) {
                         totalCountExecutors.add(new CountExecutor(size));
+                        totalCountFutures.add(null);
                     } else {
                         org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
                                 Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
                                 joins, primaryTypeName, primaryAlias);
-                        totalCountExecutors.add(new CountExecutor(source, qTotal));
+                        CountExecutor countExecutor = numberMatchedCache != null
+                                ? numberMatchedCache.getCountExecutor(primaryMeta, source,
+                                        qTotal, viewParam)
+                                : new CountExecutor(source, qTotal);
+                        totalCountExecutors.add(countExecutor);
+                        totalCountFutures.add(backgroundCount ? startCount(countExecutor) : null);
                     }
                 }
 
@@ -618,9 +699,11 @@ public class GetFeature3D {
             // where the client has limited the result set size, so we compute it lazily
             if (isNumberMatchedSkipped) {
                 totalCount = BigInteger.valueOf(-1);
+                cancelCounts(totalCountFutures);
             } else if(count < maxFeatures && calculateSize) {
                  // optimization: if count < max features then total count == count
                  totalCount = BigInteger.valueOf(count);
+                 cancelCounts(totalCountFutures);
             } else {
                 // ok, in this case we're forced to run the queries to discover the actual total count
                 // We do so lazily, not all output formats need it, leveraging the fact that BigInteger
@@ -631,11 +714,14 @@ public class GetFeature3D {
                     
                     public Object loadObject() throws Exception {
                         long totalCount = 0;
-                        for (CountExecutor q : totalCountExecutors) {
-                            int result = q.getCount();
+                        for (int i = 0; i < totalCountExecutors.size(); i++) {
+                            Future<Integer> future = totalCountFutures.get(i);
+                            int result = future == null ? totalCountExecutors.get(i).getCount()
+                                    : waitForCount(future, countDeadline);
                             // if the count is unknown for one, we don't know the total, period
                             if(result == -1) {
                                 totalCount = -1;
+                                cancelCounts(totalCountFutures);
                                 break;
                             } else {
                                 totalCount += result;
@@ -645,11 +731,25 @@ public class GetFeature3D {
                     }
                 });
                 totalCount = (BigInteger) enhancer.create(new Class[] {String.class}, new Object[] {"0"});
+                // the counts not read while encoding are cancelled once the response is written
+                ISOCountCancellingCallback.track(totalCountFutures);
             }
+            completed = true;
         } catch (IOException e) {
             throw new WFSException(request, "Error occurred getting features", e, request.getHandle());
         } catch (SchemaException e) {
             throw new WFSException(request, "Error occurred getting features", e, request.getHandle());
+        } finally {
+            // the counts are not going to be read if the request failed
+            if (!completed) {
+                cancelCounts(totalCountFutures);
+            }
+            // queries past the maxFeatures budget are never used
+            if (prepared != null) {
+                for (Future<PreparedQuery> future : prepared) {
+                    future.cancel(true);
+                }
+            }
         }
         
         
@@ -1106,6 +1206,177 @@ public class GetFeature3D {
         return visitor.getFilterPost() == null || visitor.getFilterPost() == Filter.INCLUDE;
     }
 
+    /**
+     * Submits the feature type lookup and feature source opening of each query to the executor,
+     * returns null when running serially
+     */
+    List<Future<PreparedQuery>> prepareQueries(List<Query> queries,
+            final GetFeatureRequest3D request) {
+        if (executor == null || queries.size() < 2) {
+            return null;
+        }
+
+        List<Future<PreparedQuery>> prepared = new ArrayList<Future<PreparedQuery>>();
+        for (final Query query : queries) {
+            prepared.add(executor.submit(withRequestContext(new Callable<PreparedQuery>() {
+
+                public PreparedQuery call() throws Exception {
+                    PreparedQuery result = new PreparedQuery();
+                    for (QName typeName : query.getTypeNames()) {
+                        result.metas.add(featureTypeInfo(typeName, request));
+                    }
+                    // joins need hints computed from the filter, their source is opened later
+                    if (result.metas.size() == 1) {
+                        result.source = result.metas.get(0).getFeatureSource(null, null);
+                    }
+                    return result;
+                }
+            })));
+        }
+        return prepared;
+    }
+
+    /**
+     * Wraps the task so that it runs with the security context, local workspace and local
+     * published of the calling thread, catalog lookups are secured and workspace aware
+     */
+    static <T> Callable<T> withRequestContext(final Callable<T> task) {
+        final SecurityContext securityContext = SecurityContextHolder.getContext();
+        final WorkspaceInfo localWorkspace = LocalWorkspace.get();
+        final PublishedInfo localPublished = LocalPublished.get();
+        return new Callable<T>() {
+
+            public T call() throws Exception {
+                SecurityContextHolder.setContext(securityContext);
+                LocalWorkspace.set(localWorkspace);
+                LocalPublished.set(localPublished);
+                try {
+                    return task.call();
+                } finally {
+                    LocalPublished.remove();
+                    LocalWorkspace.remove();
+                    SecurityContextHolder.clearContext();
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts the count query in background, returns null when running serially. The count is
+     * cancelled once the timeout expires, or once the response is written if the output format
+     * did not ask for numberMatched, see {@link ISOCountCancellingCallback}.
+     */
+    Future<Integer> startCount(final CountExecutor countExecutor) {
+        if (executor == null || this.countExecutor == null) {
+            return null;
+        }
+        ScheduledThreadPoolExecutor counts = this.countExecutor;
+        final CountTask task = new CountTask(withRequestContext(new Callable<Integer>() {
+
+            public Integer call() throws Exception {
+                return countExecutor.getCount();
+            }
+        }));
+        counts.execute(task);
+        task.timeout = counts.schedule(new Runnable() {
+
+            public void run() {
+                task.cancel(true);
+            }
+        }, COUNT_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (task.isDone()) {
+            task.timeout.cancel(false);
+        }
+        return task;
+    }
+
+    /**
+     * A background count, dropping its timeout as soon as it completes or gets cancelled
+     */
+    static class CountTask extends FutureTask<Integer> {
+        volatile Future<?> timeout;
+
+        CountTask(Callable<Integer> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            Future<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for a background count until the deadline, returns -1 (unknown) if it did not complete
+     * in time or failed
+     */
+    int waitForCount(Future<Integer> future, long deadline) throws IOException {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.warning("Count query did not complete in " + COUNT_TIMEOUT
+                    + "ms, numberMatched will be unknown");
+            future.cancel(true);
+            return -1;
+        } catch (CancellationException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return -1;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Count query failed", cause);
+        }
+    }
+
+    void cancelCounts(List<Future<Integer>> futures) {
+        for (Future<Integer> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    PreparedQuery getPreparedQuery(List<Future<PreparedQuery>> prepared, int i,
+            GetFeatureRequest3D request) throws IOException {
+        if (prepared == null) {
+            return null;
+        }
+        try {
+            return prepared.get(i).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WFSException(request, "Interrupted while preparing the queries", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof WFSException) {
+                throw (WFSException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new WFSException(request, "Error occurred preparing the queries", cause);
+        }
+    }
+
+    /**
+     * The feature types and feature source of a query, looked up ahead of time
+     */
+    static class PreparedQuery {
+        List<FeatureTypeInfo> metas = new ArrayList<FeatureTypeInfo>();
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source;
+    }
+
     FeatureTypeInfo featureTypeInfo(QName name, GetFeatureRequest3D request) throws WFSException, IOException {
         FeatureTypeInfo meta = catalog.getFeatureTypeByName(name.getNamespaceURI(), name.getLocalPart());
 
@@ -0,0 +1,53 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+
+/**
+ * Cancels the background numberMatched counts of a GetFeature request once its response has been
+ * written. The output format might never ask for numberMatched, and the counts would otherwise
+ * keep loading the database until they complete or time out.
+ */
+public class ISOCountCancellingCallback extends AbstractDispatcherCallback {
+
+    /**
+     * The counts started by the request handled by the current thread
+     */
+    static final ThreadLocal<List<Future<Integer>>> COUNTS = new ThreadLocal<List<Future<Integer>>>();
+
+    /**
+     * Records the counts to be cancelled when the current request is finished
+     */
+    static void track(List<Future<Integer>> futures) {
+        List<Future<Integer>> counts = COUNTS.get();
+        if (counts == null) {
+            counts = new ArrayList<Future<Integer>>();
+            COUNTS.set(counts);
+        }
+        for (Future<Integer> future : futures) {
+            if (future != null) {
+                counts.add(future);
+            }
+        }
+    }
+
+    @Override
+    public void finished(Request request) {
+        List<Future<Integer>> counts = COUNTS.get();
+        if (counts != null) {
+            COUNTS.remove();
+            for (Future<Integer> future : counts) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -6,9 +6,11 @@ package org.geoserver.wfs;
  */
 
 
+
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetCapabilitiesRequest3D;
@@ -120,6 +122,11 @@ public class ISODefaultWebFeatureService implements WebFeatureService, Applicati
         throws WFSException {
         GetFeature3D getFeature = new GetFeature3D(getServiceInfo(), catalog);
         getFeature.setFilterFactory(new ISOFilterFactoryImpl());
+        ISOGetFeatureExecutors executors = GeoServerExtensions.bean(ISOGetFeatureExecutors.class);
+        if (executors != null) {
+            executors.configure(getFeature);
+        }
+        getFeature.setNumberMatchedCache(GeoServerExtensions.bean(ISONumberMatchedCache.class));
 
         return getFeature.run(new GetFeatureRequest3D.WFS11(request));
     }
@@ -169,6 +176,10 @@ public class ISODefaultWebFeatureService implements WebFeatureService, Applicati
         throws WFSException {
         Transaction3D transaction = new Transaction3D(getServiceInfo(), catalog, context);
         transaction.setFilterFactory(filterFactory);
+        ISOTransactionExecutor executor = GeoServerExtensions.bean(ISOTransactionExecutor.class);
+        if (executor != null) {
+            executor.configure(transaction);
+        }
 
         return (TransactionResponseType) 
             transaction.transaction(new TransactionRequest3D.WFS11(request)).getAdaptee();
@@ -24,9 +24,11 @@ import net.opengis.wfs20.TransactionResponseType;
 import net.opengis.wfs20.TransactionType;
 import net.opengis.wfs20.ValueCollectionType;
 
+
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetCapabilitiesRequest3D;
@@ -94,6 +96,11 @@ public class ISODefaultWebFeatureService20 implements WebFeatureService20, Appli
         GetFeature3D gf = new GetFeature3D(getServiceInfo(), getCatalog());
         gf.setFilterFactory(filterFactory);
         gf.setStoredQueryProvider(getStoredQueryProvider());
+        ISOGetFeatureExecutors executors = GeoServerExtensions.bean(ISOGetFeatureExecutors.class);
+        if (executors != null) {
+            executors.configure(gf);
+        }
+        gf.setNumberMatchedCache(GeoServerExtensions.bean(ISONumberMatchedCache.class));
         
         return gf.run(new GetFeatureRequest3D.WFS20(request));
     }
@@ -116,6 +123,10 @@ public class ISODefaultWebFeatureService20 implements WebFeatureService20, Appli
     public TransactionResponseType transaction(TransactionType request) throws WFSException {
         Transaction3D tx = new Transaction3D(getServiceInfo(), getCatalog(), context);
         tx.setFilterFactory(filterFactory);
+        ISOTransactionExecutor executor = GeoServerExtensions.bean(ISOTransactionExecutor.class);
+        if (executor != null) {
+            executor.configure(tx);
+        }
         
         return (TransactionResponseType) 
             tx.transaction(new TransactionRequest3D.WFS20(request)).getAdaptee();
@@ -51,6 +51,8 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
     private static class BoundsIterator implements Iterator<SimpleFeature>, Closeable {
         SimpleFeatureIterator wrapped;
         SimpleFeatureType targetSchema;
+        SimpleFeatureType sourceSchema;
+        int[] indexes;
 
         public BoundsIterator(SimpleFeatureIterator wrapped, SimpleFeatureType targetSchema) {
             this.wrapped = wrapped;
@@ -67,7 +69,12 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
 
         public SimpleFeature next() throws NoSuchElementException {
             SimpleFeature base = wrapped.next();
-            return new BoundedFeature(base, targetSchema);
+            // the source schema is normally the same for all features, map it only once
+            if (base.getFeatureType() != sourceSchema) {
+                sourceSchema = base.getFeatureType();
+                indexes = indexes(sourceSchema, targetSchema);
+            }
+            return new BoundedFeature(base, targetSchema, indexes);
         }
 
         public void remove() {
@@ -75,6 +82,18 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
         }
     }
     
+    /**
+     * Maps each target attribute index to the index of the same attribute in the source schema,
+     * or -1 if the source does not have it
+     */
+    static int[] indexes(SimpleFeatureType source, SimpleFeatureType target) {
+        int[] indexes = new int[target.getAttributeCount()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = source.indexOf(target.getDescriptor(i).getName());
+        }
+        return indexes;
+    }
+
     protected Iterator openIterator() {
         return new BoundsIterator(wrapped.features(), schema);
     }
@@ -102,14 +121,18 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
         
         private SimpleFeatureType type;
         
-        public BoundedFeature(SimpleFeature wrapped, SimpleFeatureType type) {
+        private int[] indexes;
+        
+        public BoundedFeature(SimpleFeature wrapped, SimpleFeatureType type, int[] indexes) {
             super( wrapped );
             
             this.type = type;
+            this.indexes = indexes;
         }
 
         public Object getAttribute(int index) {
-            return delegate.getAttribute(type.getDescriptor(index).getName());
+            int source = indexes[index];
+            return source < 0 ? null : delegate.getAttribute(source);
         }
         
         @Override
@@ -126,7 +149,7 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
         public Object[] getAttributes(Object[] attributes) {
             Object[] retval = attributes != null ? attributes : new Object[type.getAttributeCount()];
             for (int i = 0; i < retval.length; i++) {
-                retval[i] = delegate.getAttribute(type.getDescriptor(i).getName());
+                retval[i] = getAttribute(i);
             }
             return retval;
         }
@@ -144,7 +167,7 @@ class ISOFeatureBoundsFeatureCollection extends AbstractFeatureCollection {
         	 GeometryDescriptor defaultGeometry = type.getGeometryDescriptor();
              if(defaultGeometry == null)
                  return null;
-             return (Geometry) delegate.getAttribute(defaultGeometry.getName());
+             return (Geometry) getAttribute(type.indexOf(defaultGeometry.getName()));
         }
 
         public SimpleFeatureType getFeatureType() {
@@ -0,0 +1,77 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * The thread pools used by {@link GetFeature3D}, shared by the WFS services and shut down along
+ * with the application context.
+ * <p>
+ * Both pools are only created when
+ * <code>org.geoserver.wfs.iso.getFeatureThreads</code> is greater than zero, otherwise the
+ * queries are prepared and counted serially.
+ * </p>
+ */
+public class ISOGetFeatureExecutors implements DisposableBean {
+
+    /**
+     * Bounded pool preparing the queries of GetFeature requests, null unless enabled
+     */
+    ExecutorService queryExecutor;
+
+    /**
+     * Pool running the background numberMatched counts and their timeouts, separate from the
+     * query preparation one so that slow counts do not delay the preparation
+     */
+    ScheduledThreadPoolExecutor countExecutor;
+
+    public ISOGetFeatureExecutors() {
+        if (GetFeature3D.QUERY_THREADS > 0) {
+            queryExecutor = Executors.newFixedThreadPool(GetFeature3D.QUERY_THREADS,
+                    threadFactory("WFS getfeature"));
+            countExecutor = new ScheduledThreadPoolExecutor(GetFeature3D.QUERY_THREADS,
+                    threadFactory("WFS count"));
+            // the timeouts of completed counts must not linger holding the source and query
+            countExecutor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Configures the executors of a GetFeature operation
+     */
+    public void configure(GetFeature3D getFeature) {
+        getFeature.setExecutor(queryExecutor);
+        getFeature.setCountExecutor(countExecutor);
+    }
+
+    public void destroy() throws Exception {
+        if (queryExecutor != null) {
+            queryExecutor.shutdownNow();
+        }
+        if (countExecutor != null) {
+            countExecutor.shutdownNow();
+        }
+    }
+}
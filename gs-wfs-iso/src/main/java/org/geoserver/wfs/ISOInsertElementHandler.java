@@ -7,10 +7,9 @@ package org.geoserver.wfs;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -27,7 +26,6 @@ import org.geotools.data.FeatureStore;
 import org.geotools.data.ISODataUtilities;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.data.store.ISOReprojectingFeatureCollection;
 import org.geotools.factory.Hints;
@@ -37,10 +35,10 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.identity.FeatureId;
-import org.opengis.geometry.DirectPosition;
 import org.opengis.geometry.Envelope;
 import org.opengis.geometry.Geometry;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.CoordinateSystem;
 import org.opengis.referencing.cs.CoordinateSystemAxis;
 
 
@@ -55,6 +53,13 @@ public class ISOInsertElementHandler extends ISOAbstractTransactionElementHandle
      * logger
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    /**
+     * Maximum number of features of the same type written to the store at once
+     */
+    static final int INSERT_BATCH_SIZE = Math.max(1, Integer.getInteger(
+            "org.geoserver.wfs.iso.insertBatchSize", 1000));
+
     private FilterFactory filterFactory;
 
     public ISOInsertElementHandler(GeoServer gs, FilterFactory filterFactory) {
@@ -79,20 +84,21 @@ public class ISOInsertElementHandler extends ISOAbstractTransactionElementHandle
         long inserted = response.getTotalInserted().longValue();
 
         try {
-            // group features by their schema
-            HashMap /* <SimpleFeatureType,FeatureCollection> */ schema2features = new HashMap();
-
-            
+            // group features by their schema, remembering their position in the request so that
+            // the fids are reported in the same order as the features were supplied
             List featureList = insert.getFeatures();
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
+            FeatureId[] fids = new FeatureId[featureList.size()];
+            Map<SimpleFeatureType, InsertGroup> groups = new HashMap<SimpleFeatureType, InsertGroup>();
+
+            int position = 0;
+            for (Iterator f = featureList.iterator(); f.hasNext(); position++) {
                 SimpleFeature feature = (SimpleFeature) f.next();
                 SimpleFeatureType schema = feature.getFeatureType();
-                ListFeatureCollection collection =
-                    (ListFeatureCollection) schema2features.get(schema);
+                InsertGroup group = groups.get(schema);
 
-                if (collection == null) {
-                    collection = new ListFeatureCollection(schema);
-                    schema2features.put(schema, collection);
+                if (group == null) {
+                    group = new InsertGroup(schema, request, featureStores);
+                    groups.put(schema, group);
                 }
 
                 // do a check for idegen = useExisting, if set try to tell the datastore to use
@@ -101,103 +107,14 @@ public class ISOInsertElementHandler extends ISOAbstractTransactionElementHandle
                     feature.getUserData().put(Hints.USE_PROVIDED_FID, true);
                 }
 
-                collection.add(feature);
+                group.add(feature, position);
             }
-
-            // JD: change from set fo list because if inserting
-            // features into different feature stores, they could very well
-            // get given the same id
-            // JD: change from list to map so that the map can later be
-            // processed and we can report the fids back in the same order
-            // as they were supplied
-            Map<String, List<FeatureId>> schema2fids = new HashMap<String, List<FeatureId>>();
-
-            for (Iterator c = schema2features.values().iterator(); c.hasNext();) {
-                SimpleFeatureCollection collection = (SimpleFeatureCollection) c.next();
-                SimpleFeatureType schema = collection.getSchema();
-
-                final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
-                SimpleFeatureStore store;
-                store = ISODataUtilities.simple((FeatureStore) featureStores.get(elementName));
-
-                if (store == null) {
-                    throw new WFSException(request, "Could not locate FeatureStore for '" + elementName
-                        + "'");
-                }
-
-                if (collection != null) {
-                    // if we really need to, make sure we are inserting coordinates that do
-                    // match the CRS area of validity
-                    if(getInfo().isCiteCompliant()) {
-                        checkFeatureCoordinatesRange(collection);
-                    }
-                    
-                    // reprojection
-                    final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
-                    if(defaultGeometry != null) {
-                        CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
-                        if (target != null /* && !CRS.equalsIgnoreMetadata(collection.getSchema().getCoordinateReferenceSystem(), target) */) {
-                            collection = new ISOReprojectingFeatureCollection(collection, target);
-                        }
-                    }
-                    
-                    // Need to use the namespace here for the
-                    // lookup, due to our weird
-                    // prefixed internal typenames. see
-                    // https://osgeo-org.atlassian.net/browse/GEOS-143
-
-                    // Once we get our datastores making features
-                    // with the correct namespaces
-                    // we can do something like this:
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.getFeatureTypeInfo(schema.getTypeName(),
-                    // schema.getNamespace());
-                    // until then (when geos-144 is resolved) we're
-                    // stuck with:
-                    // QName qName = (QName) typeNames.get( i );
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.featureType( qName.getPrefix(),
-                    // qName.getLocalPart() );
-
-                    // this is possible with the insert hack above.
-                    LOGGER.finer("Use featureValidation to check contents of insert");
-
-                    // featureValidation(
-                    // typeInfo.getDataStore().getId(), schema,
-                    // collection );
-                    List<FeatureId> fids = schema2fids.get(schema.getTypeName());
-
-                    if (fids == null) {
-                        fids = new LinkedList<FeatureId>();
-                        schema2fids.put(schema.getTypeName(), fids);
-                    }
-
-                    //fire pre insert event
-                    ISOTransactionEvent event = new ISOTransactionEvent(TransactionEventType.PRE_INSERT,
-                            request, elementName, collection);
-                    event.setSource(Insert3D.WFS11.unadapt(insert));
-                    
-                    listener.dataStoreChange( event );
-                    fids.addAll(store.addFeatures(collection));
-                    
-                    //fire post insert event
-                    SimpleFeatureCollection features = store.getFeatures(filterFactory.id(new HashSet<FeatureId>(fids)));
-                    event = new ISOTransactionEvent(TransactionEventType.POST_INSERT, request, 
-                        elementName, features, Insert3D.WFS11.unadapt(insert));
-                    listener.dataStoreChange( event );
-                }
+            for (InsertGroup group : groups.values()) {
+                insert(group, insert, request, listener, fids);
             }
 
-            // report back fids, we need to keep the same order the
-            // fids were reported in the original feature collection
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
-
-                // get the next fid
-                LinkedList<FeatureId> fids = (LinkedList<FeatureId>) schema2fids.get(schema.getTypeName());
-                FeatureId fid = fids.removeFirst();
-
+            // report back fids, in the order the features were supplied
+            for (FeatureId fid : fids) {
                 response.addInsertedFeature(insert.getHandle(), fid);
             }
 
@@ -212,79 +129,223 @@ public class ISOInsertElementHandler extends ISOAbstractTransactionElementHandle
         response.setTotalInserted(BigInteger.valueOf(inserted));
     }
 
-    
+
     /**
-     * Checks that all features coordinates are within the expected coordinate range
-     * @param collection
-     * @throws PointOutsideEnvelopeException
+     * Writes the features of a schema in the transaction and records their fids.
+     * <p>
+     * The listeners get a single pre/post insert event pair for all the features of the schema,
+     * while the store is handed at most {@link #INSERT_BATCH_SIZE} features at a time.
+     * </p>
      */
-    void checkFeatureCoordinatesRange(SimpleFeatureCollection collection)
-            throws PointOutsideEnvelopeException {
-        List types = collection.getSchema().getAttributeDescriptors();
-        SimpleFeatureIterator fi = collection.features();
-        try {
-            while(fi.hasNext()) {
-                SimpleFeature f = fi.next();
-                for (int i = 0; i < types.size(); i++) {
-                    if(types.get(i) instanceof GeometryDescriptor) {
-                        GeometryDescriptor gat = (GeometryDescriptor) types.get(i);
-                        if(gat.getCoordinateReferenceSystem() != null) {
-                            Geometry geom = (Geometry) f.getAttribute(i);
-                            if(geom != null)
-                                checkCoordinatesRange(geom, gat.getCoordinateReferenceSystem());
-                        }
-                    }
-                }
+    void insert(InsertGroup group, Insert3D insert, TransactionRequest3D request,
+            ISOTransactionListener listener, FeatureId[] fids) throws Exception {
+        SimpleFeatureStore store = group.store;
+
+        // if we really need to, make sure we are inserting coordinates that do
+        // match the CRS area of validity
+        if(getInfo().isCiteCompliant()) {
+            new CoordinateRangeValidator(group.schema).validate(group.features);
+        }
+
+        LOGGER.finer("Use featureValidation to check contents of insert");
+
+        //fire pre insert event
+        ISOTransactionEvent event = new ISOTransactionEvent(TransactionEventType.PRE_INSERT,
+                request, group.elementName, reproject(store,
+                        new ListFeatureCollection(group.schema, group.features)));
+        event.setSource(Insert3D.WFS11.unadapt(insert));
+        listener.dataStoreChange( event );
+
+        List<FeatureId> added = new ArrayList<FeatureId>(group.features.size());
+        int size = group.features.size();
+        for (int from = 0; from < size; from += INSERT_BATCH_SIZE) {
+            List<SimpleFeature> batch = group.features.subList(from,
+                    Math.min(size, from + INSERT_BATCH_SIZE));
+            added.addAll(store.addFeatures(reproject(store, new ListFeatureCollection(
+                    group.schema, batch))));
+        }
+        for (int i = 0; i < added.size(); i++) {
+            fids[group.positions[i]] = added.get(i);
+        }
+
+        //fire post insert event, the inserted features are read back only if a listener needs them
+        SimpleFeatureCollection features = null;
+        if (!(listener instanceof ISOTransactionContentListener)
+                || ((ISOTransactionContentListener) listener)
+                        .needsAffectedFeatures(TransactionEventType.POST_INSERT)) {
+            features = new ISOWrittenFeatureCollection(store, added, filterFactory);
+        }
+        event = new ISOTransactionEvent(TransactionEventType.POST_INSERT, request, 
+            group.elementName, features, Insert3D.WFS11.unadapt(insert));
+        listener.dataStoreChange( event );
+    }
+
+    /**
+     * Reprojects the features to the CRS of the store default geometry, if any
+     */
+    SimpleFeatureCollection reproject(SimpleFeatureStore store,
+            SimpleFeatureCollection collection) throws Exception {
+        final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
+        if(defaultGeometry != null) {
+            CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
+            if (target != null /* && !CRS.equalsIgnoreMetadata(collection.getSchema().getCoordinateReferenceSystem(), target) */) {
+                collection = new ISOReprojectingFeatureCollection(collection, target);
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * The features of a schema to be inserted, along with their position in the request
+     */
+    static class InsertGroup {
+        final SimpleFeatureType schema;
+
+        final QName elementName;
+
+        final SimpleFeatureStore store;
+
+        final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+
+        int[] positions = new int[16];
+
+        @SuppressWarnings("rawtypes")
+        InsertGroup(SimpleFeatureType schema, TransactionRequest3D request, Map featureStores) {
+            this.schema = schema;
+            // Need to use the namespace here for the lookup, due to our weird
+            // prefixed internal typenames. see
+            // https://osgeo-org.atlassian.net/browse/GEOS-143
+            this.elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
+            FeatureStore store = (FeatureStore) featureStores.get(elementName);
+            if (store == null) {
+                throw new WFSException(request, "Could not locate FeatureStore for '" + elementName
+                    + "'");
+            }
+            this.store = ISODataUtilities.simple(store);
+        }
+
+        void add(SimpleFeature feature, int position) {
+            if (features.size() == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
             }
-        } finally {
-            fi.close();
+            positions[features.size()] = position;
+            features.add(feature);
         }
     }
-    
+
     //TODO : move to the appropriate class
     public static void checkCoordinatesRange(Geometry geom, CoordinateReferenceSystem crs)
             throws PointOutsideEnvelopeException {
-        // named x,y, but could be anything
-        CoordinateSystemAxis x = crs.getCoordinateSystem().getAxis(0);
-        CoordinateSystemAxis y = crs.getCoordinateSystem().getAxis(1);
-        CoordinateSystemAxis z = null;
-        if(crs.getCoordinateSystem().getDimension() > 2)
-        	z = crs.getCoordinateSystem().getAxis(2);
-        // check if unbounded, many projected systems are, in this case no check
-        // is needed
-        boolean xUnbounded = Double.isInfinite(x.getMinimumValue())
-                && Double.isInfinite(x.getMaximumValue());
-        boolean yUnbounded = Double.isInfinite(y.getMinimumValue())
-                && Double.isInfinite(y.getMaximumValue());
-        boolean zUnbounded = false;
-        if(z != null)
-        	zUnbounded = Double.isInfinite(z.getMinimumValue())
-                && Double.isInfinite(y.getMaximumValue());
-
-        if (xUnbounded && yUnbounded) {
-            return;
+        new CoordinateRange(crs).check(geom);
+    }
+
+    /**
+     * The valid range of each axis of a CRS, looked up once and kept as primitives
+     */
+    static class CoordinateRange {
+        final double[] min;
+
+        final double[] max;
+
+        final boolean[] bounded;
+
+        final boolean unbounded;
+
+        CoordinateRange(CoordinateReferenceSystem crs) {
+            CoordinateSystem cs = crs.getCoordinateSystem();
+            // named x,y,z, but could be anything
+            int dimension = Math.min(cs.getDimension(), 3);
+            min = new double[dimension];
+            max = new double[dimension];
+            bounded = new boolean[dimension];
+            for (int i = 0; i < dimension; i++) {
+                CoordinateSystemAxis axis = cs.getAxis(i);
+                min[i] = axis.getMinimumValue();
+                max[i] = axis.getMaximumValue();
+                bounded[i] = !(Double.isInfinite(min[i]) && Double.isInfinite(max[i]));
+            }
+            // check if unbounded, many projected systems are, in this case no check
+            // is needed
+            unbounded = !bounded[0] && !bounded[1];
         }
 
-        // check each coordinate
-        Envelope env = geom.getEnvelope();
-        DirectPosition[] dps = new DirectPosition[2];
-        dps[0] = env.getLowerCorner();
-        dps[1] = env.getUpperCorner();
+        void check(Geometry geom) throws PointOutsideEnvelopeException {
+            if (unbounded) {
+                return;
+            }
+            Envelope env = geom.getEnvelope();
+            int dimension = Math.min(min.length, env.getDimension());
+            for (int i = 0; i < dimension; i++) {
+                if (bounded[i]) {
+                    check(env.getMinimum(i), i);
+                }
+            }
+            for (int i = 0; i < dimension; i++) {
+                if (bounded[i]) {
+                    check(env.getMaximum(i), i);
+                }
+            }
+        }
 
-        for (int i = 0; i < dps.length; i++) {
-            if (!xUnbounded && ((dps[i].getOrdinate(0) < x.getMinimumValue()) || (dps[i].getOrdinate(0) > x.getMaximumValue()))) {
-                throw new PointOutsideEnvelopeException(dps[i].getOrdinate(0) + " outside of ("
-                        + x.getMinimumValue() + "," + x.getMaximumValue() + ")");
+        void check(double ordinate, int axis) throws PointOutsideEnvelopeException {
+            if (ordinate < min[axis] || ordinate > max[axis]) {
+                throw new PointOutsideEnvelopeException(ordinate + " outside of (" + min[axis]
+                        + "," + max[axis] + ")");
             }
+        }
+    }
+
+    /**
+     * Checks the coordinates range of all the geometries of features of a given schema, the
+     * geometry attributes and their ranges are looked up once
+     */
+    static class CoordinateRangeValidator {
+        final int[] attributes;
+
+        final CoordinateRange[] ranges;
+
+        CoordinateRangeValidator(SimpleFeatureType schema) {
+            List<Integer> indexes = new ArrayList<Integer>();
+            List<CoordinateRange> checks = new ArrayList<CoordinateRange>();
+            for (int i = 0; i < schema.getAttributeCount(); i++) {
+                if (schema.getDescriptor(i) instanceof GeometryDescriptor) {
+                    GeometryDescriptor gat = (GeometryDescriptor) schema.getDescriptor(i);
+                    if (gat.getCoordinateReferenceSystem() != null) {
+                        CoordinateRange range = new CoordinateRange(
+                                gat.getCoordinateReferenceSystem());
+                        if (!range.unbounded) {
+                            indexes.add(i);
+                            checks.add(range);
+                        }
+                    }
+                }
+            }
+            attributes = new int[indexes.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = indexes.get(i);
+            }
+            ranges = checks.toArray(new CoordinateRange[checks.size()]);
+        }
+
+        boolean isEmpty() {
+            return attributes.length == 0;
+        }
+
+        void validate(SimpleFeature f) throws PointOutsideEnvelopeException {
+            for (int i = 0; i < attributes.length; i++) {
+                Geometry geom = (Geometry) f.getAttribute(attributes[i]);
+                if (geom != null) {
+                    ranges[i].check(geom);
+                }
+            }
+        }
 
-            if (!yUnbounded && ((dps[i].getOrdinate(1) < y.getMinimumValue()) || (dps[i].getOrdinate(1) > y.getMaximumValue()))) {
-                throw new PointOutsideEnvelopeException(dps[i].getOrdinate(1) + " outside of ("
-                        + y.getMinimumValue() + "," + y.getMaximumValue() + ")");
+        void validate(List<SimpleFeature> features) throws PointOutsideEnvelopeException {
+            if (isEmpty()) {
+                return;
             }
-            
-            if (!zUnbounded && ((dps[i].getOrdinate(2) < z.getMinimumValue()) || (dps[i].getOrdinate(2) > z.getMaximumValue()))) {
-                throw new PointOutsideEnvelopeException(dps[i].getOrdinate(2) + " outside of ("
-                        + z.getMinimumValue() + "," + z.getMaximumValue() + ")");
+            for (SimpleFeature feature : features) {
+                validate(feature);
             }
         }
     }
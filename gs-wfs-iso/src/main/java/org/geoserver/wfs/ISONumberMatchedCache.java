@@ -0,0 +1,247 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.filter.visitor.SimplifyingFilterVisitor;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the numberMatched of GetFeature requests, so that clients paging through a layer with
+ * startIndex do not pay for a full count on every page.
+ * <p>
+ * Entries are keyed by feature type id, normalized filter, view parameters and user, since
+ * secured layers limit what each user can count. They expire after
+ * {@link #TTL} seconds, and are dropped whenever a WFS transaction changes the feature type, both
+ * when the change is issued and when the transaction commits.
+ * </p>
+ */
+public class ISONumberMatchedCache implements ISOTransactionContentListener {
+
+    /**
+     * Max number of cached counts, zero disables the cache
+     */
+    static final long SIZE = Long.getLong("org.geoserver.wfs.iso.numberMatchedCacheSize", 1000);
+
+    /**
+     * Seconds a cached count is considered valid
+     */
+    static final long TTL = Long.getLong("org.geoserver.wfs.iso.numberMatchedCacheTTL", 300);
+
+    Catalog catalog;
+
+    Cache<Key, Integer> cache;
+
+    /**
+     * Bumped at each invalidation, counts started before it are not cached as they might have
+     * seen the data before the change
+     */
+    AtomicLong generation = new AtomicLong();
+
+    public ISONumberMatchedCache(Catalog catalog) {
+        this.catalog = catalog;
+        this.cache = CacheBuilder.newBuilder().maximumSize(SIZE)
+                .expireAfterWrite(TTL, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Returns a count executor for the given query, either answering from the cache or caching
+     * the result of the count once computed
+     */
+    public CountExecutor getCountExecutor(FeatureTypeInfo meta,
+            FeatureSource<? extends FeatureType, ? extends Feature> source, Query query,
+            Map<String, String> viewParams) {
+        if (SIZE <= 0 || !query.getJoins().isEmpty()) {
+            return new CountExecutor(source, query);
+        }
+
+        String filter = encode(query.getFilter());
+        if (filter == null) {
+            return new CountExecutor(source, query);
+        }
+        Key key = new Key(meta.getId(), filter, viewParams, user());
+        Integer count = cache.getIfPresent(key);
+        if (count != null) {
+            return new CountExecutor(count);
+        }
+        return new CachingCountExecutor(source, query, key, generation.get());
+    }
+
+    /**
+     * Drops all the cached counts of the given feature type
+     */
+    public void invalidate(FeatureTypeInfo meta) {
+        generation.incrementAndGet();
+        String id = meta.getId();
+        for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext();) {
+            if (id.equals(it.next().featureTypeId)) {
+                it.remove();
+            }
+        }
+    }
+
+    public boolean needsAffectedFeatures(TransactionEventType type) {
+        // only the layer name is used
+        return false;
+    }
+
+    public void dataStoreChange(ISOTransactionEvent event) throws WFSException {
+        final FeatureTypeInfo meta = featureType(event.getLayerName());
+        if (meta == null) {
+            return;
+        }
+        invalidate(meta);
+
+        // invalidate again once the changes are visible to other requests
+        Transaction transaction = event.getTransaction();
+        if (transaction != null && transaction != Transaction.AUTO_COMMIT) {
+            String stateKey = ISONumberMatchedCache.class.getName() + ":" + meta.getId();
+            if (transaction.getState(stateKey) == null) {
+                transaction.putState(stateKey, new Transaction.State() {
+
+                    public void setTransaction(Transaction transaction) {
+                    }
+
+                    public void addAuthorization(String AuthID) throws IOException {
+                    }
+
+                    public void commit() throws IOException {
+                        invalidate(meta);
+                    }
+
+                    public void rollback() throws IOException {
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns a normalized text encoding of the filter, or null if it cannot be encoded
+     */
+    static String encode(Filter filter) {
+        if (filter == null) {
+            return "INCLUDE";
+        }
+        try {
+            return ECQL.toCQL(SimplifyingFilterVisitor.simplify(filter));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identifies the current user and roles, secured sources limit the features each user can
+     * see, so counts cannot be shared between users
+     */
+    static String user() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return "";
+        }
+        List<String> roles = new ArrayList<String>();
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            roles.add(authority.getAuthority());
+        }
+        Collections.sort(roles);
+        return authentication.getName() + roles;
+    }
+
+    FeatureTypeInfo featureType(QName layerName) {
+        if (layerName == null) {
+            return null;
+        }
+        String namespaceURI = layerName.getNamespaceURI();
+        if (namespaceURI == null || namespaceURI.isEmpty()) {
+            namespaceURI = catalog.getDefaultNamespace().getURI();
+        }
+        return catalog.getFeatureTypeByName(namespaceURI, layerName.getLocalPart());
+    }
+
+    class CachingCountExecutor extends CountExecutor {
+        Key key;
+
+        long startGeneration;
+
+        CachingCountExecutor(FeatureSource<? extends FeatureType, ? extends Feature> source,
+                Query query, Key key, long startGeneration) {
+            super(source, query);
+            this.key = key;
+            this.startGeneration = startGeneration;
+        }
+
+        @Override
+        public int getCount() throws IOException {
+            int count = super.getCount();
+            if (count >= 0 && generation.get() == startGeneration) {
+                cache.put(key, count);
+            }
+            return count;
+        }
+    }
+
+    static class Key {
+        final String featureTypeId;
+
+        final String filter;
+
+        final Map<String, String> viewParams;
+
+        final String user;
+
+        Key(String featureTypeId, String filter, Map<String, String> viewParams, String user) {
+            this.featureTypeId = featureTypeId;
+            this.filter = filter;
+            this.viewParams = viewParams;
+            this.user = user;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = featureTypeId.hashCode();
+            result = 31 * result + filter.hashCode();
+            result = 31 * result + (viewParams == null ? 0 : viewParams.hashCode());
+            result = 31 * result + user.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return featureTypeId.equals(other.featureTypeId) && filter.equals(other.filter)
+                    && user.equals(other.user)
+                    && (viewParams == null ? other.viewParams == null
+                            : viewParams.equals(other.viewParams));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.data.Transaction;
+import org.opengis.feature.type.Name;
+import org.vfny.geoserver.global.ISOGeoServerFeatureSource;
+
+/**
+ * Drops the keyset paging cursors of the feature types changed by a WFS transaction, both when
+ * the change is issued and when the transaction commits, so that paging after an insert, update
+ * or delete seeks in the changed data.
+ */
+public class ISOPagingCursorInvalidator implements ISOTransactionContentListener {
+
+    Catalog catalog;
+
+    public ISOPagingCursorInvalidator(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public boolean needsAffectedFeatures(TransactionEventType type) {
+        // only the layer name is used
+        return false;
+    }
+
+    public void dataStoreChange(ISOTransactionEvent event) throws WFSException {
+        FeatureTypeInfo meta = featureType(event.getLayerName());
+        if (meta == null) {
+            return;
+        }
+        final Name name = meta.getQualifiedName();
+        ISOGeoServerFeatureSource.dataChanged(name);
+
+        // invalidate again once the changes are visible to other requests
+        Transaction transaction = event.getTransaction();
+        if (transaction != null && transaction != Transaction.AUTO_COMMIT) {
+            String stateKey = ISOPagingCursorInvalidator.class.getName() + ":" + meta.getId();
+            if (transaction.getState(stateKey) == null) {
+                transaction.putState(stateKey, new Transaction.State() {
+
+                    public void setTransaction(Transaction transaction) {
+                    }
+
+                    public void addAuthorization(String AuthID) throws IOException {
+                    }
+
+                    public void commit() throws IOException {
+                        ISOGeoServerFeatureSource.dataChanged(name);
+                    }
+
+                    public void rollback() throws IOException {
+                    }
+                });
+            }
+        }
+    }
+
+    FeatureTypeInfo featureType(QName layerName) {
+        if (layerName == null) {
+            return null;
+        }
+        String namespaceURI = layerName.getNamespaceURI();
+        if (namespaceURI == null || namespaceURI.isEmpty()) {
+            namespaceURI = catalog.getDefaultNamespace().getURI();
+        }
+        return catalog.getFeatureTypeByName(namespaceURI, layerName.getLocalPart());
+    }
+}
@@ -0,0 +1,24 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+/**
+ * A transaction listener declaring which events it needs the affected features of.
+ * <p>
+ * Building the affected features can be expensive, for {@link TransactionEventType#POST_INSERT}
+ * events it means reading back the features just inserted. When none of the listeners needs
+ * them the event is fired with no affected features. Listeners not implementing this interface
+ * are assumed to need the affected features of all events.
+ * </p>
+ */
+public interface ISOTransactionContentListener extends ISOTransactionListener {
+
+    /**
+     * Returns true if the listener uses {@link ISOTransactionEvent#getAffectedFeatures()} for
+     * events of the given type
+     */
+    boolean needsAffectedFeatures(TransactionEventType type);
+}
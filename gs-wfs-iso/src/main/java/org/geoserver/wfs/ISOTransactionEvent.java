@@ -64,6 +64,10 @@ public class ISOTransactionEvent {
      * A collection of the features that are being manipulated. Accessible and usable only
      * when the event is being thrown, if you store the event and try to access the collection later
      * there is no guarantee it will still be usable.
+     * <p>
+     * May be {@code null} when none of the listeners declared to need it, see
+     * {@link ISOTransactionContentListener}.
+     * </p>
      */
     public SimpleFeatureCollection getAffectedFeatures() {
         return affectedFeatures;
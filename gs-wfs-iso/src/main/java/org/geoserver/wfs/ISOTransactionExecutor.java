@@ -0,0 +1,55 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * The thread pool running the data store groups of the {@link Transaction3D} operations, shared
+ * by the WFS services and shut down along with the application context.
+ * <p>
+ * The pool is only created when <code>org.geoserver.wfs.iso.parallelStoreTransactions</code> is
+ * true, and is bounded by <code>org.geoserver.wfs.iso.transactionThreads</code> (the number of
+ * processors by default). The groups of concurrent transactions beyond that wait for a thread.
+ * </p>
+ */
+public class ISOTransactionExecutor implements DisposableBean {
+
+    /**
+     * Maximum number of data store groups written concurrently, across all transactions
+     */
+    static final int TRANSACTION_THREADS = Math.max(1, Integer.getInteger(
+            "org.geoserver.wfs.iso.transactionThreads", Runtime.getRuntime()
+                    .availableProcessors()));
+
+    /**
+     * Bounded pool writing and committing the data store groups, null unless enabled
+     */
+    ExecutorService executor;
+
+    public ISOTransactionExecutor() {
+        if (Transaction3D.PARALLEL_STORES) {
+            executor = Executors.newFixedThreadPool(TRANSACTION_THREADS,
+                    ISOGetFeatureExecutors.threadFactory("WFS transaction"));
+        }
+    }
+
+    /**
+     * Configures the executor of a Transaction operation
+     */
+    public void configure(Transaction3D transaction) {
+        transaction.setExecutor(executor);
+    }
+
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.wfs.request.Property;
+import org.geoserver.wfs.request.TransactionElement;
+import org.geoserver.wfs.request.TransactionRequest3D;
+import org.geoserver.wfs.request.TransactionResponse;
+import org.geoserver.wfs.request.Update3D;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureLockException;
+import org.geotools.data.FeatureLocking;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.ISODataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.feature.type.PropertyDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.geometry.Geometry;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Processes standard update elements.
+ * <p>
+ * The update is planned so that the matched features are never read back in full. When the
+ * store can encode the whole filter natively the changed attributes are written with a single set
+ * based update using the request filter. Otherwise the identifiers of the matched features are
+ * collected, with a query asking for no attributes, and the update is done one chunk of
+ * {@link #UPDATE_BATCH_SIZE} identifiers at a time, identifier filters being the ones every
+ * store can encode.
+ * </p>
+ * <p>
+ * The identifiers are otherwise collected only when they have to be reported, that is for WFS
+ * 2.0 update results, or when a listener needs the updated features.
+ * </p>
+ */
+public class ISOUpdateElementHandler extends ISOAbstractTransactionElementHandler {
+    /**
+     * logger
+     */
+    static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    /**
+     * Maximum number of features updated with a single identifier filter
+     */
+    static final int UPDATE_BATCH_SIZE = Math.max(1, Integer.getInteger(
+            "org.geoserver.wfs.iso.updateBatchSize", 1000));
+
+    private FilterFactory filterFactory;
+
+    public ISOUpdateElementHandler(GeoServer gs, FilterFactory filterFactory) {
+        super(gs);
+        this.filterFactory = filterFactory;
+    }
+
+    public void checkValidity(TransactionElement element, Map<QName, FeatureTypeInfo> featureTypeInfos)
+        throws WFSTransactionException {
+        if (!getInfo().getServiceLevel().getOps().contains( WFSInfo.Operation.TRANSACTION_UPDATE)) {
+            throw new WFSException(element, "Transaction UPDATE support is not enabled");
+        }
+
+        Update3D update = (Update3D) element;
+        FeatureTypeInfo meta = featureTypeInfos.values().iterator().next();
+        FeatureType featureType;
+        try {
+            featureType = meta.getFeatureType();
+        } catch (IOException e) {
+            throw new WFSTransactionException("Could not load feature type " + meta.getName(), e,
+                    update.getHandle());
+        }
+
+        for (Property property : update.getUpdateProperties()) {
+            PropertyDescriptor pd = featureType.getDescriptor(property.getName().getLocalPart());
+            if (pd == null) {
+                throw new WFSException(element, "No such property: " + property.getName());
+            }
+            if (property.getValue() == null && pd.getMinOccurs() > 0 && !pd.isNillable()) {
+                throw new WFSException(element, "Property '" + pd.getName()
+                        + "' is mandatory but no value specified.");
+            }
+        }
+    }
+
+    public void execute(TransactionElement element, TransactionRequest3D request, Map featureStores,
+        TransactionResponse response, ISOTransactionListener listener) throws WFSTransactionException {
+        Update3D update = (Update3D) element;
+        final QName elementName = update.getTypeName();
+        final String handle = update.getHandle();
+        LOGGER.finer("Transaction Update:" + update);
+
+        long updated = response.getTotalUpdated().longValue();
+
+        FeatureStore source = (FeatureStore) featureStores.get(elementName);
+        if (source == null) {
+            throw new WFSException(request, "Could not locate FeatureStore for '" + elementName
+                + "'");
+        }
+        SimpleFeatureStore store = ISODataUtilities.simple(source);
+        SimpleFeatureType schema = store.getSchema();
+
+        try {
+            // make sure all geometric elements in the filter have a crs, and that the filter
+            // is reprojected to store's native crs as well
+            CoordinateReferenceSystem declaredCRS = WFSReprojectionUtil_ISO.getDeclaredCrs(
+                    schema, request.getVersion());
+            Filter filter = (Filter) update.getFilter();
+            if (filter == null) {
+                filter = Filter.INCLUDE;
+            }
+            filter = WFSReprojectionUtil_ISO.normalizeFilterCRS(filter, schema, declaredCRS);
+
+            // the changed attributes, with geometries in the native CRS
+            List<Property> properties = update.getUpdateProperties();
+            Name[] names = new Name[properties.size()];
+            Object[] values = new Object[properties.size()];
+            for (int i = 0; i < properties.size(); i++) {
+                Property property = properties.get(i);
+                AttributeDescriptor descriptor = schema.getDescriptor(property.getName()
+                        .getLocalPart());
+                if (descriptor == null) {
+                    throw new WFSException(request, "No such property: " + property.getName());
+                }
+                names[i] = descriptor.getName();
+                values[i] = property.getValue();
+                if (values[i] instanceof Geometry && descriptor instanceof GeometryDescriptor) {
+                    values[i] = reproject((Geometry) values[i],
+                            ((GeometryDescriptor) descriptor).getCoordinateReferenceSystem());
+                }
+            }
+
+            //fire pre update event, the collection is not read unless a listener needs it
+            ISOTransactionEvent event = new ISOTransactionEvent(TransactionEventType.PRE_UPDATE,
+                    request, elementName, store.getFeatures(filter));
+            event.setSource(Update3D.WFS11.unadapt(update));
+            listener.dataStoreChange( event );
+
+            // collect the identifiers of the matched features only if really needed, they cannot
+            // be looked up once the update is done as the filter might no longer match
+            boolean setBased = canEncode(elementName, filter);
+            List<FeatureId> fids = null;
+            if (!setBased || request.getVersion() == null
+                    || request.getVersion().startsWith("2")
+                    || needsAffectedFeatures(listener, TransactionEventType.POST_UPDATE)) {
+                fids = collectIds(store, schema, filter);
+            }
+            long count = fids != null ? fids.size() : count(store, schema, filter);
+
+            try {
+                if (setBased) {
+                    if (count > 0) {
+                        store.modifyFeatures(names, values, filter);
+                    }
+                } else {
+                    // write only the changed attributes, a chunk of features at a time
+                    for (int start = 0; start < fids.size(); start += UPDATE_BATCH_SIZE) {
+                        List<FeatureId> chunk = fids.subList(start,
+                                Math.min(start + UPDATE_BATCH_SIZE, fids.size()));
+                        store.modifyFeatures(names, values,
+                                filterFactory.id(new HashSet<FeatureId>(chunk)));
+                    }
+                }
+            } catch (FeatureLockException e) {
+                throw new WFSTransactionException("Features are locked, could not update them",
+                        e, handle);
+            }
+
+            // with releaseAction SOME only the locks of the updated features are released
+            if (request.getLockId() != null && request.isReleaseActionSome()
+                    && source instanceof FeatureLocking) {
+                ((FeatureLocking) source).unLockFeatures(filter);
+            }
+
+            // make sure we only notify committed changes
+            if (count > 0) {
+                SimpleFeatureCollection features = null;
+                if (fids != null
+                        && needsAffectedFeatures(listener, TransactionEventType.POST_UPDATE)) {
+                    features = new ISOWrittenFeatureCollection(store, fids, filterFactory);
+                }
+                event = new ISOTransactionEvent(TransactionEventType.POST_UPDATE, request,
+                        elementName, features, Update3D.WFS11.unadapt(update));
+                listener.dataStoreChange( event );
+
+                if (fids != null) {
+                    response.addUpdatedFeatures(handle, fids);
+                }
+            }
+
+            // update the update counter
+            updated += count;
+        } catch (WFSTransactionException e) {
+            throw e;
+        } catch (Exception e) {
+            String msg = "Error performing update: " + e.getMessage();
+            throw new WFSTransactionException(msg, e, handle);
+        }
+
+        // update transaction summary
+        response.setTotalUpdated(BigInteger.valueOf(updated));
+    }
+
+    boolean needsAffectedFeatures(ISOTransactionListener listener, TransactionEventType type) {
+        return !(listener instanceof ISOTransactionContentListener)
+                || ((ISOTransactionContentListener) listener).needsAffectedFeatures(type);
+    }
+
+    /**
+     * Returns true if the store of the feature type can turn the whole filter into a native
+     * update, as far as its filter capabilities tell
+     */
+    boolean canEncode(QName elementName, Filter filter) {
+        try {
+            FeatureTypeInfo meta = geoServer.getCatalog().getFeatureTypeByName(
+                    elementName.getNamespaceURI(), elementName.getLocalPart());
+            if (meta == null) {
+                return false;
+            }
+            DataAccess<?, ?> dataStore = meta.getStore().getDataStore(null);
+            return dataStore instanceof JDBCDataStore
+                    && ((JDBCDataStore) dataStore).getFilterCapabilities().fullySupports(filter);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not look up the filter capabilities of "
+                    + elementName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Collects the identifiers of the features matching the filter, without reading their
+     * attributes
+     */
+    List<FeatureId> collectIds(SimpleFeatureStore store, SimpleFeatureType schema, Filter filter)
+            throws IOException {
+        List<FeatureId> fids = new ArrayList<FeatureId>();
+        Query query = new Query(schema.getTypeName(), filter, Query.NO_NAMES);
+        SimpleFeatureIterator fi = store.getFeatures(query).features();
+        try {
+            while (fi.hasNext()) {
+                fids.add(fi.next().getIdentifier());
+            }
+        } finally {
+            fi.close();
+        }
+        return fids;
+    }
+
+    long count(SimpleFeatureStore store, SimpleFeatureType schema, Filter filter)
+            throws IOException {
+        Query query = new Query(schema.getTypeName(), filter, Query.NO_NAMES);
+        int count = store.getCount(query);
+        if (count < 0) {
+            count = store.getFeatures(query).size();
+        }
+        return count;
+    }
+
+    /**
+     * Reprojects the geometry to the target CRS, geometries without a CRS are assumed to be
+     * already in it
+     */
+    Geometry reproject(Geometry geom, CoordinateReferenceSystem target) throws Exception {
+        CoordinateReferenceSystem source = geom.getCoordinateReferenceSystem();
+        if (source == null || target == null || CRS.equalsIgnoreMetadata(source, target)) {
+            return geom;
+        }
+        return geom.transform(target);
+    }
+
+    public Class getElementClass() {
+        return Update3D.class;
+    }
+
+    public QName[] getTypeNames(TransactionElement element) throws WFSTransactionException {
+        return new QName[] { ((Update3D) element).getTypeName() };
+    }
+}
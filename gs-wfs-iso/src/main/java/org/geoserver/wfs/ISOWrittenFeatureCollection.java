@@ -0,0 +1,121 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * The features just inserted or updated in a store, read back lazily by id, a chunk at a time,
+ * only when the collection is actually iterated
+ */
+class ISOWrittenFeatureCollection extends AbstractFeatureCollection {
+
+    /**
+     * Number of features read back with a single id filter
+     */
+    static final int CHUNK_SIZE = 1000;
+
+    SimpleFeatureStore store;
+
+    List<FeatureId> fids;
+
+    FilterFactory filterFactory;
+
+    public ISOWrittenFeatureCollection(SimpleFeatureStore store, List<FeatureId> fids,
+            FilterFactory filterFactory) {
+        super(store.getSchema());
+        this.store = store;
+        this.fids = fids;
+        this.filterFactory = filterFactory;
+    }
+
+    protected Iterator openIterator() {
+        return new ChunkIterator();
+    }
+
+    protected void closeIterator(Iterator close) {
+        ((ChunkIterator) close).close();
+    }
+
+    public int size() {
+        return fids.size();
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema()
+                .getCoordinateReferenceSystem());
+        ChunkIterator it = new ChunkIterator();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (f.getBounds() != null && !f.getBounds().isEmpty()) {
+                    bounds.include(f.getBounds());
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return bounds;
+    }
+
+    /**
+     * Reads the features a chunk of ids at a time
+     */
+    class ChunkIterator implements Iterator<SimpleFeature>, Closeable {
+        int offset;
+
+        SimpleFeatureIterator delegate;
+
+        public boolean hasNext() {
+            while (delegate == null || !delegate.hasNext()) {
+                close();
+                if (offset >= fids.size()) {
+                    return false;
+                }
+                int end = Math.min(offset + CHUNK_SIZE, fids.size());
+                HashSet<FeatureId> chunk = new HashSet<FeatureId>(fids.subList(offset, end));
+                offset = end;
+                try {
+                    delegate = store.getFeatures(filterFactory.id(chunk)).features();
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to read back the written features", e);
+                }
+            }
+            return true;
+        }
+
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return delegate.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Removal is not supported");
+        }
+
+        public void close() {
+            if (delegate != null) {
+                delegate.close();
+                delegate = null;
+            }
+        }
+    }
+}
@@ -10,11 +10,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +28,7 @@ import javax.xml.namespace.QName;
 
 import net.opengis.wfs.TransactionResponseType;
 import net.opengis.wfs.TransactionType;
+import net.opengis.wfs20.CreatedOrModifiedFeatureType;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
@@ -37,6 +44,7 @@ import org.geotools.data.FeatureStore;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
 import org.springframework.context.ApplicationContext;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -54,6 +62,15 @@ public class Transaction3D {
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
 
+    /**
+     * When true, the elements writing to different data stores are run concurrently, each data
+     * store in its own transaction. The data stores cannot be committed atomically, if one of
+     * them fails to commit after others did the changes already committed are kept, and the
+     * failure reported to the client names the data stores that were committed.
+     */
+    static final boolean PARALLEL_STORES = Boolean
+            .getBoolean("org.geoserver.wfs.iso.parallelStoreTransactions");
+
     /**
      * WFS configuration
      */
@@ -74,6 +91,11 @@ public class Transaction3D {
     protected List transactionElementHandlers = new ArrayList();
     protected List transactionListeners = new ArrayList();
     protected List transactionPlugins = new ArrayList();
+
+    /**
+     * Runs the data store groups, null when the transaction runs as a whole
+     */
+    protected ExecutorService executor;
     
     public Transaction3D(WFSInfo wfs, Catalog catalog, ApplicationContext context) {
         this.wfs = wfs;
@@ -95,6 +117,10 @@ public class Transaction3D {
         this.filterFactory = filterFactory;
     }
 
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     public TransactionResponse transaction(TransactionRequest3D request)
         throws WFSException {
         // make sure server is supporting transactions
@@ -185,6 +211,11 @@ public class Transaction3D {
         // List typeNames = new ArrayList();
         Map elementHandlers = gatherElementHandlers(request);
 
+        // Ids of the data stores written by each element, and FeatureStores by data store id,
+        // used to run the elements of independent data stores concurrently
+        Map<TransactionElement, Set<String>> elementStoreIds = new HashMap<TransactionElement, Set<String>>();
+        Map<String, List<FeatureStore>> storeSources = new HashMap<String, List<FeatureStore>>();
+
         // Gather feature types required by transaction elements and validate
         // the elements
         // finally gather FeatureStores required by Transaction Elements
@@ -227,6 +258,9 @@ public class Transaction3D {
             // check element validity
             handler.checkValidity(element, featureTypeInfos);
 
+            Set<String> storeIds = new HashSet<String>();
+            elementStoreIds.put(element, storeIds);
+
             // go through all feature type infos data objects, and load feature
             // stores
             for (Iterator m = featureTypeInfos.values().iterator(); m.hasNext();) {
@@ -245,6 +279,9 @@ public class Transaction3D {
                 LOGGER.fine("located FeatureType w/ typeRef '" + typeRef + "' and elementName '"
                     + elementName + "'");
 
+                final String storeId = meta.getStore().getId();
+                storeIds.add(storeId);
+
                 if (stores.containsKey(elementName)) {
                     // typeName already loaded
                     continue;
@@ -264,6 +301,13 @@ public class Transaction3D {
                         }
 
                         stores2.put(typeRef, source);
+
+                        List<FeatureStore> sources = storeSources.get(storeId);
+                        if (sources == null) {
+                            sources = new ArrayList<FeatureStore>();
+                            storeSources.put(storeId, sources);
+                        }
+                        sources.add(store);
                     } else {
                         String msg = elementName + " is read-only";
                         throw new WFSTransactionException(msg, (String) null, element.getHandle());
@@ -306,6 +350,10 @@ public class Transaction3D {
         // result
         TransactionResponse result = request.createResponse();
         result.setHandle(request.getHandle());
+
+        // the groups of elements writing to the same data store, if they can run concurrently
+        List<StoreGroup> groups = groupByStore(request, elementHandlers, elementStoreIds,
+                storeSources);
         
         // execute elements in order, recording results as we go
         // I will need to record the damaged area for pre commit validation
@@ -314,12 +362,16 @@ public class Transaction3D {
         Exception exception = null;
 
         try {
-            for (Iterator it = elementHandlers.entrySet().iterator(); it.hasNext();) {
-                Map.Entry entry = (Map.Entry) it.next();
-                TransactionElement element = (TransactionElement) entry.getKey();
-                ISOTransactionElementHandler handler = (ISOTransactionElementHandler) entry.getValue();
+            if (groups != null) {
+                executeGroups(groups, request, stores, result, multiplexer);
+            } else {
+                for (Iterator it = elementHandlers.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    TransactionElement element = (TransactionElement) entry.getKey();
+                    ISOTransactionElementHandler handler = (ISOTransactionElementHandler) entry.getValue();
 
-                handler.execute(element, request, stores, result, multiplexer);
+                    handler.execute(element, request, stores, result, multiplexer);
+                }
             }
         } catch (WFSTransactionException e) {
             LOGGER.log(Level.SEVERE, "Transaction failed", e);
@@ -342,6 +394,9 @@ public class Transaction3D {
 
         try {
             if (exception != null) {
+                if (groups != null) {
+                    rollbackGroups(groups);
+                }
                 transaction.rollback();
             } else {
                 // inform plugins we're about to commit
@@ -350,6 +405,11 @@ public class Transaction3D {
                     fireBeforeCommit(request, tp);
                 }
 
+                // the data stores go first, the request transaction only holds the state
+                // of the listeners when running in groups
+                if (groups != null) {
+                    commitGroups(groups, request);
+                }
                 transaction.commit();
                 committed = true;
 
@@ -381,6 +441,9 @@ public class Transaction3D {
                 }
             }
         } finally {
+            if (groups != null) {
+                closeGroups(groups);
+            }
             transaction.close();
             transaction = null;
             request.setTransaction(null);
@@ -444,6 +507,248 @@ public class Transaction3D {
         // response = build;
     }
 
+    /**
+     * Groups the elements by the data store they write to, and gives each group its own
+     * transaction. Returns null when the transaction has to run as a whole: parallel execution
+     * disabled or no executor configured, lock authorization in use, elements writing to several data stores, or a single
+     * data store involved.
+     */
+    List<StoreGroup> groupByStore(TransactionRequest3D request, Map elementHandlers,
+            Map<TransactionElement, Set<String>> elementStoreIds,
+            Map<String, List<FeatureStore>> storeSources) throws IOException {
+        if (!PARALLEL_STORES || executor == null || request.getLockId() != null) {
+            return null;
+        }
+
+        Map<String, StoreGroup> groups = new LinkedHashMap<String, StoreGroup>();
+        int index = 0;
+        for (Iterator it = elementHandlers.entrySet().iterator(); it.hasNext(); index++) {
+            Map.Entry entry = (Map.Entry) it.next();
+            TransactionElement element = (TransactionElement) entry.getKey();
+            Set<String> storeIds = elementStoreIds.get(element);
+            if (storeIds == null || storeIds.size() != 1) {
+                return null;
+            }
+
+            String storeId = storeIds.iterator().next();
+            StoreGroup group = groups.get(storeId);
+            if (group == null) {
+                group = new StoreGroup(storeId);
+                groups.put(storeId, group);
+            }
+            group.indexes.add(index);
+            group.elements.add(element);
+            group.handlers.add((ISOTransactionElementHandler) entry.getValue());
+        }
+        if (groups.size() < 2) {
+            return null;
+        }
+
+        List<StoreGroup> result = new ArrayList<StoreGroup>(groups.values());
+        try {
+            for (StoreGroup group : result) {
+                group.transaction = getDatastoreTransaction(request);
+                for (FeatureStore store : storeSources.get(group.storeId)) {
+                    store.setTransaction(group.transaction);
+                }
+            }
+        } catch (IOException e) {
+            closeGroups(result);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * First phase of a transaction run in groups: each group executes its elements, in request
+     * order, concurrently with the other groups. The changes are left pending in the group
+     * transactions. If any element fails the failure of the element coming first in the request
+     * is reported, as it would have been when running the elements one after the other, and all
+     * groups get rolled back.
+     */
+    void executeGroups(List<StoreGroup> groups, final TransactionRequest3D request,
+            final Map stores, TransactionResponse result, final ISOTransactionListener listener)
+            throws Exception {
+        int count = 0;
+        for (StoreGroup group : groups) {
+            count += group.elements.size();
+        }
+        final TransactionResponse[] responses = new TransactionResponse[count];
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final StoreGroup group : groups) {
+            // the secured stores and the catalog lookups of the handlers need the security
+            // context and the local workspace of the request
+            tasks.add(GetFeature3D.withRequestContext(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int i = 0; i < group.elements.size(); i++) {
+                        int index = group.indexes.get(i);
+                        responses[index] = request.createResponse();
+                        try {
+                            group.handlers.get(i).execute(group.elements.get(i), request,
+                                    stores, responses[index], listener);
+                        } catch (Exception e) {
+                            group.failure = e;
+                            group.failureIndex = index;
+                            break;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            rollbackGroups(groups);
+            closeGroups(groups);
+            throw e;
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                StoreGroup group = groups.get(i);
+                group.failure = e.getCause() instanceof Exception ? (Exception) e.getCause()
+                        : new Exception(e.getCause());
+                group.failureIndex = group.indexes.get(0);
+            }
+        }
+
+        StoreGroup failed = null;
+        for (StoreGroup group : groups) {
+            if (group.failure != null
+                    && (failed == null || group.failureIndex < failed.failureIndex)) {
+                failed = group;
+            }
+        }
+
+        // report the results in request order, up to the failure if any
+        int end = failed == null ? count : failed.failureIndex;
+        for (int i = 0; i < end; i++) {
+            if (responses[i] != null) {
+                merge(result, responses[i]);
+            }
+        }
+
+        if (failed != null) {
+            if (!(failed.failure instanceof WFSTransactionException)) {
+                // not handled by the caller, release the transactions right away
+                rollbackGroups(groups);
+                closeGroups(groups);
+            }
+            throw failed.failure;
+        }
+    }
+
+    /**
+     * Second phase of a transaction run in groups, commits all groups concurrently. The stores
+     * do not support a prepared state, so a group failing to commit cannot undo the groups
+     * already committed: the others are rolled back, and the failure reported to the client
+     * names the data stores whose changes were committed.
+     */
+    void commitGroups(List<StoreGroup> groups, TransactionRequest3D request) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final StoreGroup group : groups) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    group.transaction.commit();
+                    group.committed = true;
+                    return null;
+                }
+            });
+        }
+
+        Exception failure = null;
+        List<String> committed = new ArrayList<String>();
+        List<Future<Void>> futures = executor.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            StoreGroup group = groups.get(i);
+            try {
+                futures.get(i).get();
+                committed.add(group.storeId);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause()
+                            : new Exception(e.getCause());
+                }
+            }
+        }
+
+        if (failure != null) {
+            rollbackGroups(groups);
+            if (!committed.isEmpty()) {
+                String msg = "Transaction partially committed, the changes to data stores "
+                        + committed + " were committed and could not be rolled back: "
+                        + failure.getMessage();
+                LOGGER.log(Level.SEVERE, msg, failure);
+                throw new WFSException(request, msg, failure);
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Rolls back the groups not committed yet
+     */
+    void rollbackGroups(List<StoreGroup> groups) {
+        for (StoreGroup group : groups) {
+            if (group.transaction != null && !group.committed) {
+                try {
+                    group.transaction.rollback();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed trying to rollback a transaction:" + e);
+                }
+            }
+        }
+    }
+
+    void closeGroups(List<StoreGroup> groups) {
+        for (StoreGroup group : groups) {
+            if (group.transaction != null) {
+                try {
+                    group.transaction.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close a transaction", e);
+                }
+                group.transaction = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the results of a single element to the transaction results
+     */
+    void merge(TransactionResponse result, TransactionResponse part) {
+        result.setTotalInserted(result.getTotalInserted().add(part.getTotalInserted()));
+        result.setTotalUpdated(result.getTotalUpdated().add(part.getTotalUpdated()));
+        result.setTotalDeleted(result.getTotalDeleted().add(part.getTotalDeleted()));
+        List inserted = part.getInsertedFeatures();
+        if (inserted != null && !inserted.isEmpty()) {
+            // copy first, the entries are moved from the part to the result
+            result.getInsertedFeatures().addAll(new ArrayList(inserted));
+        }
+        // the updated and replaced features are only reported by WFS 2.0
+        if (part.getAdaptee() instanceof net.opengis.wfs20.TransactionResponseType) {
+            net.opengis.wfs20.TransactionResponseType tr =
+                (net.opengis.wfs20.TransactionResponseType) part.getAdaptee();
+            if (tr.getUpdateResults() != null) {
+                for (CreatedOrModifiedFeatureType f : tr.getUpdateResults().getFeature()) {
+                    result.addUpdatedFeatures(f.getHandle(),
+                            new ArrayList<FeatureId>(f.getResourceId()));
+                }
+            }
+            if (tr.getReplaceResults() != null) {
+                for (CreatedOrModifiedFeatureType f : tr.getReplaceResults().getFeature()) {
+                    result.addReplacedFeatures(f.getHandle(),
+                            new ArrayList<FeatureId>(f.getResourceId()));
+                }
+            }
+        }
+    }
+
     void fireAfterTransaction(TransactionRequest3D request, TransactionResponse result, boolean committed, TransactionPlugin tp) {
         TransactionType tx = TransactionRequest3D.WFS11.unadapt(request);
         TransactionResponseType tr = TransactionResponse.WFS11.unadapt(result);
@@ -645,14 +950,40 @@ public class Transaction3D {
         lockFeature.refresh(lockId);
     }
 
+    /**
+     * The elements writing to the same data store, along with their transaction
+     */
+    static class StoreGroup {
+        final String storeId;
+
+        final List<Integer> indexes = new ArrayList<Integer>();
+
+        final List<TransactionElement> elements = new ArrayList<TransactionElement>();
+
+        final List<ISOTransactionElementHandler> handlers = new ArrayList<ISOTransactionElementHandler>();
+
+        DefaultTransaction transaction;
+
+        Exception failure;
+
+        int failureIndex = -1;
+
+        volatile boolean committed;
+
+        StoreGroup(String storeId) {
+            this.storeId = storeId;
+        }
+    }
+
     /**
      * Bounces the single callback we got from transaction event handlers to all
-     * registered listeners
+     * registered listeners. Listeners are called one at a time, also when the elements
+     * of different data stores run concurrently
      *
      * @author Andrea Aime - TOPP
      *
      */
-    private class TransactionListenerMux implements ISOTransactionListener {
+    private class TransactionListenerMux implements ISOTransactionContentListener {
         public void dataStoreChange(List listeners, ISOTransactionEvent event)
             throws WFSException {
             for (Iterator it = listeners.iterator(); it.hasNext();) {
@@ -661,10 +992,26 @@ public class Transaction3D {
             }
         }
 
-        public void dataStoreChange(ISOTransactionEvent event)
+        public synchronized void dataStoreChange(ISOTransactionEvent event)
             throws WFSException {
             dataStoreChange(transactionPlugins, event);
             dataStoreChange(transactionListeners, event);
         }
+
+        public boolean needsAffectedFeatures(TransactionEventType type) {
+            return needsAffectedFeatures(transactionPlugins, type)
+                    || needsAffectedFeatures(transactionListeners, type);
+        }
+
+        boolean needsAffectedFeatures(List listeners, TransactionEventType type) {
+            for (Iterator it = listeners.iterator(); it.hasNext();) {
+                Object listener = it.next();
+                if (!(listener instanceof ISOTransactionContentListener)
+                        || ((ISOTransactionContentListener) listener).needsAffectedFeatures(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
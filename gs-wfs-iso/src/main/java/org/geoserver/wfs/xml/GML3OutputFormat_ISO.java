@@ -19,14 +19,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 import javax.xml.namespace.QName;
@@ -57,6 +61,7 @@ import org.geoserver.wfs.xml.v1_1_0.WFS_ISO;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.simple.SimpleFeatureTypeImpl;
+import org.geotools.gml2.SrsSyntax;
 import org.geotools.gml3.iso.GMLConfiguration_ISO;
 import org.geotools.xml.Configuration;
 import org.geotools.xml.Encoder;
@@ -74,9 +79,28 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
     public static final boolean OPTIMIZED_ENCODING = Boolean.parseBoolean(System.getProperty(
             "GML_OPTIMIZED_ENCODING", "true"));
 
+    /**
+     * Enables the streaming encoder for simple features, used only along with the optimized
+     * encoding
+     */
+    public static final boolean STREAMING_ENCODING = Boolean.parseBoolean(System.getProperty(
+            "GML_STREAMING_ENCODING", "false"));
+
+    /**
+     * Encodes complex features in a single pass, computing numberOfFeatures up front with a count
+     * query instead of patching it with an XSLT transformation of a temporary dump
+     */
+    public static final boolean COMPLEX_FEATURE_SINGLE_PASS = Boolean.parseBoolean(System
+            .getProperty("GML_COMPLEX_FEATURE_SINGLE_PASS", "true"));
+
     GeoServer geoServer;
     Catalog catalog;
     WFSConfiguration_ISO configuration;
+
+    /**
+     * Pre-built configurations, one for each combination of encoding settings
+     */
+    ConcurrentMap<EncoderSettings, WFSConfiguration_ISO> configurations = new ConcurrentHashMap<EncoderSettings, WFSConfiguration_ISO>();
     protected static DOMSource xslt;
     
     static {
@@ -175,45 +199,12 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
 
         WFSInfo wfs = getInfo();
         
-        //set feature bounding parameter
-        //JD: this is quite bad as its not at all thread-safe, once we remove the configuration
-        // as being a singleton on trunk/2.0.x this should not be an issue
-        if ( wfs.isFeatureBounding() ) {
-            configuration.getProperties().remove( GMLConfiguration_ISO.NO_FEATURE_BOUNDS );
-        }
-        else {
-            configuration.getProperties().add( GMLConfiguration_ISO.NO_FEATURE_BOUNDS);
-        }
-
-        if (wfs.isCiteCompliant()) {
-            //cite compliance forces us to forgo srsDimension attribute
-            configuration.getProperties().add(GMLConfiguration_ISO.NO_SRS_DIMENSION);
-        }
-        else {
-            configuration.getProperties().remove(GMLConfiguration_ISO.NO_SRS_DIMENSION);
-        }
-
-        if (OPTIMIZED_ENCODING) {
-            configuration.getProperties().add(GMLConfiguration_ISO.OPTIMIZED_ENCODING);
-        } else {
-            configuration.getProperties().remove(GMLConfiguration_ISO.OPTIMIZED_ENCODING);
-        }
-
-
-        //set up the srsname syntax
-        configuration.setSrsSyntax(wfs.getGML().get(WFSInfo.Version.V_11).getSrsNameStyle().toSrsSyntax());
-
-        /*
-         * Set property encoding featureMemeber as opposed to featureMembers
-         * 
-         */
-        if (wfs.isEncodeFeatureMember()) {
-            configuration.getProperties().add(GMLConfiguration_ISO.ENCODE_FEATURE_MEMBER);
-        } else {
-            configuration.getProperties().remove(GMLConfiguration_ISO.ENCODE_FEATURE_MEMBER);
-        }
-        
-        setNumDecimals(numDecimals);
+        // the shared configuration is never modified, each combination of encoding settings
+        // gets its own pre-built configuration, so concurrent requests do not interfere
+        EncoderSettings settings = new EncoderSettings(numDecimals, wfs.isFeatureBounding(),
+                !wfs.isCiteCompliant(), OPTIMIZED_ENCODING, wfs.isEncodeFeatureMember(),
+                wfs.getGML().get(WFSInfo.Version.V_11).getSrsNameStyle().toSrsSyntax());
+        WFSConfiguration_ISO configuration = getConfiguration(settings);
 
         //declare wfs schema location
         Object gft = getFeature.getParameters()[0];
@@ -221,12 +212,16 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
         Encoder encoder = createEncoder(configuration, ns2metas, gft);
         encoder.setEncoding(Charset.forName( geoServer.getSettings().getCharset() ));
 
+        // schema locations and prefixes are tracked for the streaming encoder as well
+        Map<String, String> schemaLocations = new LinkedHashMap<String, String>();
+        Map<String, String> namespaces = new HashMap<String, String>();
         if (wfs.isCanonicalSchemaLocation()) {
-            encoder.setSchemaLocation(getWfsNamespace(), getCanonicalWfsSchemaLocation());
+            schemaLocations.put(getWfsNamespace(), getCanonicalWfsSchemaLocation());
         } else {
-            encoder.setSchemaLocation(getWfsNamespace(),
+            schemaLocations.put(getWfsNamespace(),
                     buildSchemaURL(request.getBaseURL(), getRelativeWfsSchemaLocation()));
         }
+        encoder.setSchemaLocation(getWfsNamespace(), schemaLocations.get(getWfsNamespace()));
 
         //declare application schema namespaces
         
@@ -243,12 +238,14 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
                 ResourceInfo ri = (ResourceInfo) m.next();
                 if(ri instanceof FeatureTypeInfo) {
                     FeatureTypeInfo meta = (FeatureTypeInfo) ri;
+                    namespaces.put(namespaceURI, meta.getNamespace().getPrefix());
                     FeatureType featureType = meta.getFeatureType();
                     Object userSchemaLocation = featureType.getUserData().get("schemaURI");
                     if (userSchemaLocation != null && userSchemaLocation instanceof Map) {
                         Map<String, String> schemaURIs = (Map<String, String>) userSchemaLocation;
                         for (String namespace : schemaURIs.keySet()) {
                             encoder.setSchemaLocation(namespace, schemaURIs.get(namespace));
+                            schemaLocations.put(namespace, schemaURIs.get(namespace));
                         }
                     } else {
                         typeNames.append(meta.getPrefixedName());
@@ -259,6 +256,7 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
                 } else {
                     encoder.getNamespaces().declarePrefix(ri.getStore().getWorkspace().getName(),
                             namespaceURI);
+                    namespaces.put(namespaceURI, ri.getStore().getWorkspace().getName());
                 }
             }
 
@@ -269,19 +267,52 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
                 LOGGER.finer("Unable to find user-defined schema location for: " + namespaceURI
                         + ". Using a built schema location by default: " + schemaLocation);
                 encoder.setSchemaLocation(namespaceURI, schemaLocation);
+                schemaLocations.put(namespaceURI, schemaLocation);
             }
         }
 
-        setAdditionalSchemaLocations(encoder, request, wfs);
-        if (this.isComplexFeature(results)) {
+        if (isStreamingEncoding(results)) {
+            // the streaming encoder does not use the encoder, only collect the locations
+            // subclasses would add to it
+            setAdditionalSchemaLocations(new SchemaLocationRecorder(configuration,
+                    schemaLocations), request, wfs);
+            GML3StreamingEncoder_ISO streaming = new GML3StreamingEncoder_ISO(output,
+                    encoder.getEncoding(), numDecimals, wfs.isFeatureBounding(),
+                    !wfs.isCiteCompliant(), wfs.isEncodeFeatureMember(), settings.srsSyntax);
+            streaming.encode(results, getWfsNamespace(), namespaces, schemaLocations,
+                    encoder.getEncoding().name());
+        } else if (this.isComplexFeature(results)) {
+            setAdditionalSchemaLocations(encoder, request, wfs);
             complexFeatureStreamIntercept(results, output, encoder);
         } else {
+            setAdditionalSchemaLocations(encoder, request, wfs);
             encode(results, output, encoder);
         }
         
     }
     
-    protected void setNumDecimals(int numDecimals) {
+    /**
+     * Returns the configuration for the given settings, building it on first use. The returned
+     * configuration must not be modified.
+     */
+    protected WFSConfiguration_ISO getConfiguration(EncoderSettings settings) {
+        WFSConfiguration_ISO result = configurations.get(settings);
+        if (result == null) {
+            result = configuration.newInstance();
+            settings.apply(result);
+            setNumDecimals(result, settings.numDecimals);
+            // make sure the schema is loaded before the configuration gets shared
+            result.schema();
+
+            WFSConfiguration_ISO existing = configurations.putIfAbsent(settings, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    protected void setNumDecimals(WFSConfiguration_ISO configuration, int numDecimals) {
         GMLConfiguration_ISO gml = configuration.getDependency(GMLConfiguration_ISO.class);
         if (gml != null) {
             gml.setNumDecimals(numDecimals);
@@ -293,9 +324,37 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
         return new Encoder(configuration, configuration.schema());
     }
 
+    /**
+     * Returns true if the response should be written by {@link GML3StreamingEncoder_ISO} instead
+     * of the generic encoder. Subclasses encoding other GML versions should return false.
+     */
+    protected boolean isStreamingEncoding(FeatureCollectionResponse results) {
+        return STREAMING_ENCODING && OPTIMIZED_ENCODING && !isComplexFeature(results);
+    }
+
     protected void setAdditionalSchemaLocations(Encoder encoder, GetFeatureRequest request, WFSInfo wfs) {
         //hook for subclasses
     }
+
+    /**
+     * Records the schema locations set on it, used to pass the locations declared by
+     * {@link #setAdditionalSchemaLocations(Encoder, GetFeatureRequest, WFSInfo)} to the streaming
+     * encoder
+     */
+    static class SchemaLocationRecorder extends Encoder {
+        Map<String, String> schemaLocations;
+
+        SchemaLocationRecorder(Configuration configuration, Map<String, String> schemaLocations) {
+            super(configuration, configuration.schema());
+            this.schemaLocations = schemaLocations;
+        }
+
+        @Override
+        public void setSchemaLocation(String namespaceURI, String location) {
+            super.setSchemaLocation(namespaceURI, location);
+            schemaLocations.put(namespaceURI, location);
+        }
+    }
     
     protected void encode(FeatureCollectionResponse results, OutputStream output, Encoder encoder)
         throws IOException {
@@ -309,6 +368,15 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
 
     private void complexFeatureStreamIntercept(FeatureCollectionResponse results, OutputStream output,
             Encoder encoder) throws IOException {
+        if (COMPLEX_FEATURE_SINGLE_PASS) {
+            BigInteger count = countFeatures(results);
+            if (count != null) {
+                results.setNumberOfFeatures(count);
+                encode(results, output, encoder);
+                return;
+            }
+        }
+
         if (this.getXSLT() == null) {
             throw new FileNotFoundException("Unable to locate xslt resource file");
         }
@@ -333,6 +401,22 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
         }
     }
     
+    /**
+     * Runs a count query on each of the collections in the response, returns null if any of them
+     * cannot tell its size without being iterated
+     */
+    protected BigInteger countFeatures(FeatureCollectionResponse results) {
+        long count = 0;
+        for (int fcIndex = 0; fcIndex < results.getFeature().size(); fcIndex++) {
+            int size = results.getFeature().get(fcIndex).size();
+            if (size < 0) {
+                return null;
+            }
+            count += size;
+        }
+        return BigInteger.valueOf(count);
+    }
+
     protected String getWfsNamespace() {
         return org.geoserver.wfs.xml.v1_1_0.WFS.NAMESPACE;
     }
@@ -365,6 +449,78 @@ public class GML3OutputFormat_ISO extends WFSGetFeatureOutputFormat {
         transformer.transform(new StreamSource(in), new StreamResult(out));
     }
 
+    /**
+     * Immutable set of encoding options for a single response, used as the key of the
+     * configuration pool
+     */
+    protected static final class EncoderSettings {
+        final int numDecimals;
+
+        final boolean featureBounding;
+
+        final boolean srsDimension;
+
+        final boolean optimized;
+
+        final boolean encodeFeatureMember;
+
+        final SrsSyntax srsSyntax;
+
+        public EncoderSettings(int numDecimals, boolean featureBounding, boolean srsDimension,
+                boolean optimized, boolean encodeFeatureMember, SrsSyntax srsSyntax) {
+            this.numDecimals = numDecimals;
+            this.featureBounding = featureBounding;
+            this.srsDimension = srsDimension;
+            this.optimized = optimized;
+            this.encodeFeatureMember = encodeFeatureMember;
+            this.srsSyntax = srsSyntax;
+        }
+
+        void apply(Configuration configuration) {
+            Set properties = configuration.getProperties();
+            if (!featureBounding) {
+                properties.add(GMLConfiguration_ISO.NO_FEATURE_BOUNDS);
+            }
+            if (!srsDimension) {
+                //cite compliance forces us to forgo srsDimension attribute
+                properties.add(GMLConfiguration_ISO.NO_SRS_DIMENSION);
+            }
+            if (optimized) {
+                properties.add(GMLConfiguration_ISO.OPTIMIZED_ENCODING);
+            }
+            if (encodeFeatureMember) {
+                properties.add(GMLConfiguration_ISO.ENCODE_FEATURE_MEMBER);
+            }
+            WFSXmlUtils_ISO.setSrsSyntax(configuration, srsSyntax);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = numDecimals;
+            result = 31 * result + (featureBounding ? 1 : 0);
+            result = 31 * result + (srsDimension ? 1 : 0);
+            result = 31 * result + (optimized ? 1 : 0);
+            result = 31 * result + (encodeFeatureMember ? 1 : 0);
+            result = 31 * result + (srsSyntax == null ? 0 : srsSyntax.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof EncoderSettings)) {
+                return false;
+            }
+            EncoderSettings other = (EncoderSettings) obj;
+            return numDecimals == other.numDecimals && featureBounding == other.featureBounding
+                    && srsDimension == other.srsDimension && optimized == other.optimized
+                    && encodeFeatureMember == other.encodeFeatureMember
+                    && srsSyntax == other.srsSyntax;
+        }
+    }
+
     // If an application does not register its own custom ErrorListener, the default ErrorListener
     // is used which reports all warnings and errors to System.err and does not throw any Exceptions
     private class TransformerErrorListener implements ErrorListener {
@@ -0,0 +1,524 @@
+/* (c) 2014 - 2016 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.gml2.SrsSyntax;
+import org.geotools.gml2.iso.bindings.GML2EncodingUtils;
+import org.geotools.gml3.iso.GML;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.geometry.BoundingBox3D;
+import org.opengis.geometry.DirectPosition;
+import org.opengis.geometry.Geometry;
+import org.opengis.geometry.aggregate.MultiCurve;
+import org.opengis.geometry.aggregate.MultiPoint;
+import org.opengis.geometry.aggregate.MultiPrimitive;
+import org.opengis.geometry.aggregate.MultiSurface;
+import org.opengis.geometry.complex.CompositeSurface;
+import org.opengis.geometry.coordinate.LineString;
+import org.opengis.geometry.coordinate.PointArray;
+import org.opengis.geometry.primitive.Curve;
+import org.opengis.geometry.primitive.CurveSegment;
+import org.opengis.geometry.primitive.OrientableCurve;
+import org.opengis.geometry.primitive.OrientableSurface;
+import org.opengis.geometry.primitive.Point;
+import org.opengis.geometry.primitive.Primitive;
+import org.opengis.geometry.primitive.Ring;
+import org.opengis.geometry.primitive.Solid;
+import org.opengis.geometry.primitive.SolidBoundary;
+import org.opengis.geometry.primitive.Surface;
+import org.opengis.geometry.primitive.SurfaceBoundary;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Writes a GML 3.1.1 wfs:FeatureCollection of simple features with ISO 19107 geometries straight
+ * to a {@link XMLStreamWriter}.
+ * <p>
+ * Unlike the generic {@link org.geotools.xml.Encoder} this does not build an element tree for each
+ * feature: features are pulled one at a time from the collection iterators and Solid, Surface,
+ * Curve, Point and MultiPrimitive geometries are written coordinate by coordinate, reusing the same
+ * position and text buffers, so the memory used does not depend on the size of the response.
+ * </p>
+ * <p>
+ * Instances are not thread safe, a new one should be created for each response.
+ * </p>
+ */
+public class GML3StreamingEncoder_ISO {
+
+    static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static final String GML_PREFIX = "gml";
+
+    static final String WFS_PREFIX = "wfs";
+
+    static final String XSI_PREFIX = "xsi";
+
+    XMLStreamWriter writer;
+
+    int numDecimals;
+
+    boolean featureBounding;
+
+    boolean srsDimension;
+
+    boolean encodeFeatureMember;
+
+    SrsSyntax srsSyntax;
+
+    /**
+     * Reusable position, filled in place while walking the point arrays
+     */
+    DirectPosition position;
+
+    /**
+     * Reusable text buffers for the coordinate lists
+     */
+    StringBuffer text = new StringBuffer();
+
+    char[] chars = new char[1024];
+
+    /**
+     * Plain notation ordinate formatter, see {@link #appendOrdinate(double)}
+     */
+    NumberFormat formatter;
+
+    FieldPosition fieldPosition = new FieldPosition(0);
+
+    public GML3StreamingEncoder_ISO(OutputStream output, Charset charset, int numDecimals,
+            boolean featureBounding, boolean srsDimension, boolean encodeFeatureMember,
+            SrsSyntax srsSyntax) throws IOException {
+        try {
+            this.writer = OUTPUT_FACTORY.createXMLStreamWriter(output, charset.name());
+        } catch (XMLStreamException e) {
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        }
+        this.numDecimals = numDecimals;
+        this.formatter = NumberFormat.getInstance(Locale.ENGLISH);
+        this.formatter.setGroupingUsed(false);
+        this.formatter.setRoundingMode(RoundingMode.HALF_UP);
+        this.formatter.setMinimumFractionDigits(0);
+        this.formatter.setMaximumFractionDigits(Math.max(numDecimals, 0));
+        this.featureBounding = featureBounding;
+        this.srsDimension = srsDimension;
+        this.encodeFeatureMember = encodeFeatureMember;
+        this.srsSyntax = srsSyntax;
+    }
+
+    /**
+     * Encodes the whole response.
+     *
+     * @param results the features to encode
+     * @param wfsNamespace the wfs namespace of the collection element
+     * @param namespaces the application namespaces, uri to prefix
+     * @param schemaLocations the schema locations, namespace uri to location
+     */
+    public void encode(FeatureCollectionResponse results, String wfsNamespace,
+            Map<String, String> namespaces, Map<String, String> schemaLocations, String charset)
+            throws IOException {
+        try {
+            writer.writeStartDocument(charset, "1.0");
+            writer.setPrefix(WFS_PREFIX, wfsNamespace);
+            writer.setPrefix(GML_PREFIX, GML.NAMESPACE);
+            writer.setPrefix(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+                writer.setPrefix(ns.getValue(), ns.getKey());
+            }
+
+            writer.writeStartElement(WFS_PREFIX, "FeatureCollection", wfsNamespace);
+            writer.writeNamespace(WFS_PREFIX, wfsNamespace);
+            writer.writeNamespace(GML_PREFIX, GML.NAMESPACE);
+            writer.writeNamespace(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+                writer.writeNamespace(ns.getValue(), ns.getKey());
+            }
+
+            BigInteger numberOfFeatures = results.getNumberOfFeatures();
+            if (numberOfFeatures != null) {
+                writer.writeAttribute("numberOfFeatures", numberOfFeatures.toString());
+            }
+            Calendar timeStamp = results.getTimeStamp();
+            if (timeStamp != null) {
+                writer.writeAttribute("timeStamp", DatatypeConverter.printDateTime(timeStamp));
+            }
+            if (results.getLockId() != null) {
+                writer.writeAttribute("lockId", results.getLockId());
+            }
+            if (!schemaLocations.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, String> sl : schemaLocations.entrySet()) {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(sl.getKey()).append(' ').append(sl.getValue());
+                }
+                writer.writeAttribute(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                        "schemaLocation", sb.toString());
+            }
+
+            if (!encodeFeatureMember) {
+                writer.writeStartElement(GML_PREFIX, "featureMembers", GML.NAMESPACE);
+            }
+            for (FeatureCollection fc : (List<FeatureCollection>) results.getFeature()) {
+                SimpleFeatureIterator fi = ((SimpleFeatureCollection) fc).features();
+                try {
+                    while (fi.hasNext()) {
+                        if (encodeFeatureMember) {
+                            writer.writeStartElement(GML_PREFIX, "featureMember", GML.NAMESPACE);
+                        }
+                        encodeFeature(fi.next());
+                        if (encodeFeatureMember) {
+                            writer.writeEndElement();
+                        }
+                    }
+                } finally {
+                    fi.close();
+                }
+            }
+            if (!encodeFeatureMember) {
+                writer.writeEndElement();
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    void encodeFeature(SimpleFeature feature) throws XMLStreamException {
+        SimpleFeatureType type = feature.getFeatureType();
+        String ns = type.getName().getNamespaceURI();
+
+        writer.writeStartElement(ns, type.getTypeName());
+        if (feature.getID() != null) {
+            writer.writeAttribute(GML_PREFIX, GML.NAMESPACE, "id", feature.getID());
+        }
+
+        if (featureBounding) {
+            encodeBounds(feature.getBounds());
+        }
+
+        List<AttributeDescriptor> descriptors = type.getAttributeDescriptors();
+        for (int i = 0; i < descriptors.size(); i++) {
+            Object value = feature.getAttribute(i);
+            AttributeDescriptor descriptor = descriptors.get(i);
+            if (value == null) {
+                if (descriptor.getMinOccurs() > 0 && descriptor.isNillable()) {
+                    writer.writeEmptyElement(ns, descriptor.getLocalName());
+                    writer.writeAttribute(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                            "nil", "true");
+                }
+                continue;
+            }
+
+            writer.writeStartElement(ns, descriptor.getLocalName());
+            if (value instanceof Geometry) {
+                encodeGeometry((Geometry) value, true);
+            } else {
+                String converted = Converters.convert(value, String.class);
+                writer.writeCharacters(converted != null ? converted : value.toString());
+            }
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+    }
+
+    void encodeBounds(BoundingBox bounds) throws XMLStreamException {
+        writer.writeStartElement(GML_PREFIX, "boundedBy", GML.NAMESPACE);
+        if (bounds == null || bounds.isEmpty()) {
+            writer.writeStartElement(GML_PREFIX, "Null", GML.NAMESPACE);
+            writer.writeCharacters("unknown");
+            writer.writeEndElement();
+        } else {
+            boolean is3D = bounds instanceof BoundingBox3D;
+            writer.writeStartElement(GML_PREFIX, "Envelope", GML.NAMESPACE);
+            writeSrsName(bounds.getCoordinateReferenceSystem());
+            if (srsDimension) {
+                writer.writeAttribute("srsDimension", is3D ? "3" : "2");
+            }
+
+            writer.writeStartElement(GML_PREFIX, "lowerCorner", GML.NAMESPACE);
+            text.setLength(0);
+            appendOrdinate(bounds.getMinX());
+            appendOrdinate(bounds.getMinY());
+            if (is3D) {
+                appendOrdinate(((BoundingBox3D) bounds).getMinZ());
+            }
+            flushText();
+            writer.writeEndElement();
+
+            writer.writeStartElement(GML_PREFIX, "upperCorner", GML.NAMESPACE);
+            text.setLength(0);
+            appendOrdinate(bounds.getMaxX());
+            appendOrdinate(bounds.getMaxY());
+            if (is3D) {
+                appendOrdinate(((BoundingBox3D) bounds).getMaxZ());
+            }
+            flushText();
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    void encodeGeometry(Geometry geometry, boolean root) throws XMLStreamException {
+        if (geometry instanceof Point) {
+            encodePoint((Point) geometry, root);
+        } else if (geometry instanceof Curve) {
+            encodeCurve((Curve) geometry, root);
+        } else if (geometry instanceof Surface) {
+            encodeSurface((Surface) geometry, root, false);
+        } else if (geometry instanceof Solid) {
+            encodeSolid((Solid) geometry, root);
+        } else if (geometry instanceof MultiPrimitive) {
+            encodeMultiPrimitive((MultiPrimitive) geometry, root);
+        } else {
+            throw new IllegalArgumentException("Unsupported geometry type "
+                    + geometry.getClass().getName());
+        }
+    }
+
+    void encodePoint(Point point, boolean root) throws XMLStreamException {
+        DirectPosition dp = point.getDirectPosition();
+        writer.writeStartElement(GML_PREFIX, "Point", GML.NAMESPACE);
+        if (root) {
+            writeSrsName(point.getCoordinateReferenceSystem());
+        }
+        writer.writeStartElement(GML_PREFIX, "pos", GML.NAMESPACE);
+        if (srsDimension) {
+            writer.writeAttribute("srsDimension", String.valueOf(dp.getDimension()));
+        }
+        text.setLength(0);
+        appendPosition(dp);
+        flushText();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    void encodeCurve(Curve curve, boolean root) throws XMLStreamException {
+        writer.writeStartElement(GML_PREFIX, "Curve", GML.NAMESPACE);
+        if (root) {
+            writeSrsName(curve.getCoordinateReferenceSystem());
+        }
+        writer.writeStartElement(GML_PREFIX, "segments", GML.NAMESPACE);
+        for (CurveSegment segment : curve.getSegments()) {
+            writer.writeStartElement(GML_PREFIX, "LineStringSegment", GML.NAMESPACE);
+            PointArray points = points(segment);
+            startPosList(points.getDimension());
+            text.setLength(0);
+            appendPoints(points, false, false);
+            flushText();
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    void encodeSurface(Surface surface, boolean root, boolean reversed) throws XMLStreamException {
+        SurfaceBoundary boundary = surface.getBoundary();
+        writer.writeStartElement(GML_PREFIX, "Polygon", GML.NAMESPACE);
+        if (root) {
+            writeSrsName(surface.getCoordinateReferenceSystem());
+        }
+        if (boundary != null) {
+            writer.writeStartElement(GML_PREFIX, "exterior", GML.NAMESPACE);
+            encodeRing(boundary.getExterior(), reversed);
+            writer.writeEndElement();
+            for (Ring interior : boundary.getInteriors()) {
+                writer.writeStartElement(GML_PREFIX, "interior", GML.NAMESPACE);
+                encodeRing(interior, reversed);
+                writer.writeEndElement();
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    void encodeRing(Ring ring, boolean reversed) throws XMLStreamException {
+        writer.writeStartElement(GML_PREFIX, "LinearRing", GML.NAMESPACE);
+        List<OrientableCurve> generators = ring.getGenerators();
+        int dimension = ring.getCoordinateDimension();
+        startPosList(dimension);
+        text.setLength(0);
+        // a ring is a chain of curves sharing their end points, write the shared ones only once
+        boolean first = true;
+        int n = generators.size();
+        for (int g = 0; g < n; g++) {
+            OrientableCurve generator = generators.get(reversed ? n - 1 - g : g);
+            boolean backwards = reversed ^ generator.getOrientation() < 0;
+            Curve curve = generator.getPrimitive();
+            List<? extends CurveSegment> segments = curve.getSegments();
+            int s = segments.size();
+            for (int i = 0; i < s; i++) {
+                PointArray points = points(segments.get(backwards ? s - 1 - i : i));
+                appendPoints(points, backwards, !first);
+                first = false;
+            }
+        }
+        flushText();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    void encodeSolid(Solid solid, boolean root) throws XMLStreamException {
+        SolidBoundary boundary = solid.getBoundary();
+        writer.writeStartElement(GML_PREFIX, "Solid", GML.NAMESPACE);
+        if (root) {
+            writeSrsName(solid.getCoordinateReferenceSystem());
+        }
+        if (boundary != null) {
+            writer.writeStartElement(GML_PREFIX, "exterior", GML.NAMESPACE);
+            encodeShell(boundary.getExterior());
+            writer.writeEndElement();
+            if (boundary.getInteriors() != null) {
+                for (CompositeSurface interior : boundary.getInteriors()) {
+                    writer.writeStartElement(GML_PREFIX, "interior", GML.NAMESPACE);
+                    encodeShell(interior);
+                    writer.writeEndElement();
+                }
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    void encodeShell(CompositeSurface shell) throws XMLStreamException {
+        writer.writeStartElement(GML_PREFIX, "CompositeSurface", GML.NAMESPACE);
+        for (OrientableSurface generator : shell.getGenerators()) {
+            writer.writeStartElement(GML_PREFIX, "surfaceMember", GML.NAMESPACE);
+            encodeSurface(generator.getPrimitive(), false, generator.getOrientation() < 0);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    void encodeMultiPrimitive(MultiPrimitive multi, boolean root) throws XMLStreamException {
+        String name, member;
+        if (multi instanceof MultiPoint) {
+            name = "MultiPoint";
+            member = "pointMember";
+        } else if (multi instanceof MultiCurve) {
+            name = "MultiCurve";
+            member = "curveMember";
+        } else if (multi instanceof MultiSurface) {
+            name = "MultiSurface";
+            member = "surfaceMember";
+        } else {
+            name = "MultiGeometry";
+            member = "geometryMember";
+        }
+
+        writer.writeStartElement(GML_PREFIX, name, GML.NAMESPACE);
+        if (root) {
+            writeSrsName(multi.getCoordinateReferenceSystem());
+        }
+        for (Primitive primitive : (Collection<? extends Primitive>) multi.getElements()) {
+            writer.writeStartElement(GML_PREFIX, member, GML.NAMESPACE);
+            encodeGeometry(primitive, false);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    PointArray points(CurveSegment segment) {
+        if (segment instanceof LineString) {
+            return ((LineString) segment).getControlPoints();
+        }
+        return segment.getSamplePoints();
+    }
+
+    void startPosList(int dimension) throws XMLStreamException {
+        writer.writeStartElement(GML_PREFIX, "posList", GML.NAMESPACE);
+        if (srsDimension) {
+            writer.writeAttribute("srsDimension", String.valueOf(dimension));
+        }
+    }
+
+    void writeSrsName(CoordinateReferenceSystem crs) throws XMLStreamException {
+        if (crs == null) {
+            return;
+        }
+        String srsName = GML2EncodingUtils.toURI(crs, srsSyntax);
+        if (srsName != null) {
+            writer.writeAttribute("srsName", srsName);
+        }
+    }
+
+    /**
+     * Appends all the points in the array to the text buffer, filling the same
+     * {@link DirectPosition} instance for each of them.
+     *
+     * @param skipFirst whether the first point should be skipped because it is the same as the
+     *        last one already written
+     */
+    void appendPoints(PointArray points, boolean backwards, boolean skipFirst) {
+        int size = points.size();
+        for (int i = skipFirst ? 1 : 0; i < size; i++) {
+            position = points.getDirectPosition(backwards ? size - 1 - i : i, position);
+            appendPosition(position);
+        }
+    }
+
+    void appendPosition(DirectPosition dp) {
+        int dimension = dp.getDimension();
+        for (int d = 0; d < dimension; d++) {
+            appendOrdinate(dp.getOrdinate(d));
+        }
+    }
+
+    void appendOrdinate(double ordinate) {
+        if (text.length() > 0) {
+            text.append(' ');
+        }
+        if (Double.isNaN(ordinate) || Double.isInfinite(ordinate)) {
+            text.append(ordinate);
+        } else if (numDecimals < 0) {
+            // shortest representation, never in scientific notation
+            text.append(BigDecimal.valueOf(ordinate).stripTrailingZeros().toPlainString());
+        } else {
+            // rounded half up to the requested number of decimals, trailing zeroes dropped
+            formatter.format(ordinate, text, fieldPosition);
+        }
+    }
+
+    void flushText() throws XMLStreamException {
+        int length = text.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        text.getChars(0, length, chars, 0);
+        writer.writeCharacters(chars, 0, length);
+    }
+}
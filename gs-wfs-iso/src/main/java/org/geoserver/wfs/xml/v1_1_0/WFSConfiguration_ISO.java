@@ -73,11 +73,43 @@ public class WFSConfiguration_ISO extends Configuration {
     protected ISOFeatureTypeSchemaBuilder schemaBuilder;
 
     public WFSConfiguration_ISO(Catalog catalog, ISOFeatureTypeSchemaBuilder schemaBuilder, final WFS_ISO wfs) {
+        this(catalog, schemaBuilder, wfs, true);
+    }
+
+    /**
+     * @param listen whether to register the listeners disposing the schema on catalog changes,
+     *        the configurations sharing a schema rely on the ones of the first configuration
+     */
+    WFSConfiguration_ISO(Catalog catalog, ISOFeatureTypeSchemaBuilder schemaBuilder,
+            final WFS_ISO wfs, boolean listen) {
         super( wfs );
 
         this.catalog = catalog;
         this.schemaBuilder = schemaBuilder;
-        
+
+        if (listen) {
+            addListeners(catalog, wfs);
+        }
+
+        addDependency(new OGCConfiguration_ISO());
+        addDependency(new OWSConfiguration());
+        addDependency(new GMLConfiguration_ISO());
+        // OGC and OWS add two extra GML configurations in the mix, make sure to configure them
+        // all...
+        /*CurvedGeometryFactory gf = new CurvedGeometryFactory(Double.MAX_VALUE);
+        for (Object configuration : allDependencies()) {
+            if (configuration instanceof GMLConfiguration) {
+                GMLConfiguration gml = (GMLConfiguration) configuration;
+                gml.setGeometryFactory(gf);
+            }
+        }*/
+
+    }
+
+    /**
+     * Registers the listeners disposing the schema when the catalog or its resources change
+     */
+    static void addListeners(Catalog catalog, final WFS_ISO wfs) {
         catalog.addListener(new CatalogListener() {
 
             public void handleAddEvent(CatalogAddEvent event) {
@@ -144,19 +176,6 @@ public class WFSConfiguration_ISO extends Configuration {
                 }
             }
         });*/
-        addDependency(new OGCConfiguration_ISO());
-        addDependency(new OWSConfiguration());
-        addDependency(new GMLConfiguration_ISO());
-        // OGC and OWS add two extra GML configurations in the mix, make sure to configure them
-        // all...
-        /*CurvedGeometryFactory gf = new CurvedGeometryFactory(Double.MAX_VALUE);
-        for (Object configuration : allDependencies()) {
-            if (configuration instanceof GMLConfiguration) {
-                GMLConfiguration gml = (GMLConfiguration) configuration;
-                gml.setGeometryFactory(gf);
-            }
-        }*/
-
     }
 
     public void setSrsSyntax(SrsSyntax srsSyntax) {
@@ -245,6 +264,16 @@ public class WFSConfiguration_ISO extends Configuration {
     public Catalog getCatalog() {
         return catalog;
     }
+
+    /**
+     * Creates a new configuration sharing the catalog, schema builder and schema of this one,
+     * that can be set up with its own properties without affecting this instance. The new
+     * configuration registers no catalog listeners, the shared schema is already disposed by
+     * the ones of this configuration.
+     */
+    public WFSConfiguration_ISO newInstance() {
+        return new WFSConfiguration_ISO(catalog, schemaBuilder, (WFS_ISO) getXSD(), false);
+    }
     
     public void addDependency(Configuration dependency) {
         //override to make public